@@ -0,0 +1,155 @@
+package cp2023.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.solution.WaitForGraph;
+
+// Compares the recursive cycle search of the first solution with the wait-for graph on a chain of devices,
+// where component i waits for the place of component i + 1.
+// Usage: java cp2023.benchmarks.CycleSearchBenchmark [devices] [extra waiters per device] [iterations]
+public final class CycleSearchBenchmark {
+    private static final long RECURSIVE_SEARCH_STACK_SIZE = 1L << 30;
+
+    public static void main(String[] args) throws InterruptedException {
+        int numOfDevices = args.length > 0 ? Integer.parseInt(args[0]) : 100_000;
+        int numOfExtraWaiters = args.length > 1 ? Integer.parseInt(args[1]) : 0;
+        int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        System.out.println("Chain of " + numOfDevices + " devices, " + numOfExtraWaiters +
+                " extra waiting components per device, " + iterations + " iterations.");
+
+        var recursiveSearch = new RecursiveSearch(numOfDevices, numOfExtraWaiters);
+        System.out.println("Recursive search on the default stack: " + recursiveSearch.runOnDefaultStack());
+        var recursiveTimes = new long[2];
+        var recursiveThread = new Thread(null, () -> {
+            recursiveTimes[0] = measure(iterations, recursiveSearch::extendChain);
+            recursiveTimes[1] = measure(iterations, recursiveSearch::closeCycle);
+        }, "recursive-search", RECURSIVE_SEARCH_STACK_SIZE);
+        recursiveThread.start();
+        recursiveThread.join();
+        report("recursive search", recursiveTimes[0], recursiveTimes[1]);
+
+        var graph = new WaitForGraph(numOfDevices + 1);
+        for (int device = numOfDevices - 2; device >= 0; device--) {
+            for (int i = 0; i <= numOfExtraWaiters; i++) {
+                graph.addEdge(device, device + 1);
+            }
+        }
+        long extendTime = measure(iterations, () -> {
+            if (graph.addEdge(numOfDevices - 1, numOfDevices)) {
+                throw new AssertionError("extending the chain needs no search");
+            }
+            graph.removeEdge(numOfDevices - 1, numOfDevices);
+        });
+        long closeTime = measure(iterations, () -> {
+            if (!graph.addEdge(numOfDevices - 1, 0) || graph.checkEdge(numOfDevices - 1, 0) == null) {
+                throw new AssertionError("cycle not found");
+            }
+            graph.removeEdge(numOfDevices - 1, 0);
+        });
+        report("wait-for graph", extendTime, closeTime);
+    }
+
+    private static long measure(int iterations, Runnable check) {
+        for (int i = 0; i < iterations; i++) {
+            check.run();
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            check.run();
+        }
+        return (System.nanoTime() - start) / iterations;
+    }
+
+    private static void report(String name, long extendTime, long closeTime) {
+        System.out.printf("%-18s extend chain: %12d ns   close cycle: %12d ns%n", name, extendTime, closeTime);
+    }
+
+    // The search CP2023StorageSystem ran for every transfer that found its destination full.
+    private static final class RecursiveSearch {
+        private final HashMap<DeviceId, Deque<ComponentId>> waitingQueuesForDevice;
+        private final ConcurrentHashMap<ComponentId, Optional<DeviceId>> componentPlacement;
+        private final HashMap<ComponentId, ComponentId> whoWantsMyPlace;
+        private final int numOfDevices;
+
+        RecursiveSearch(int numOfDevices, int numOfExtraWaiters) {
+            this.waitingQueuesForDevice = new HashMap<>();
+            this.componentPlacement = new ConcurrentHashMap<>();
+            this.whoWantsMyPlace = new HashMap<>();
+            this.numOfDevices = numOfDevices;
+            int extraComponentId = numOfDevices;
+            for (int device = 0; device < numOfDevices; device++) {
+                componentPlacement.put(new ComponentId(device), Optional.of(new DeviceId(device)));
+                var waitingQueue = new LinkedList<ComponentId>();
+                for (int i = 0; i < numOfExtraWaiters; i++) {
+                    var extraComponent = new ComponentId(extraComponentId++);
+                    componentPlacement.put(extraComponent, Optional.empty());
+                    waitingQueue.add(extraComponent);
+                }
+                if (device > 0) {
+                    waitingQueue.add(new ComponentId(device - 1));
+                }
+                waitingQueuesForDevice.put(new DeviceId(device), waitingQueue);
+            }
+        }
+
+        String runOnDefaultStack() {
+            try {
+                closeCycle();
+                return "completed";
+            } catch (StackOverflowError e) {
+                return "stack overflow";
+            }
+        }
+
+        void extendChain() {
+            var lastDevice = new DeviceId(numOfDevices - 1);
+            if (findCycledTransfers(new DeviceId(numOfDevices), lastDevice, new ComponentId(numOfDevices - 1),
+                    new HashMap<>())) {
+                throw new AssertionError("unexpected cycle");
+            }
+        }
+
+        void closeCycle() {
+            var lastDevice = new DeviceId(numOfDevices - 1);
+            if (!findCycledTransfers(new DeviceId(0), lastDevice, new ComponentId(numOfDevices - 1),
+                    new HashMap<>())) {
+                throw new AssertionError("cycle not found");
+            }
+            whoWantsMyPlace.clear();
+        }
+
+        private boolean findCycledTransfers(
+            DeviceId start, DeviceId currentDevice, ComponentId currentComponent, Map<DeviceId, Boolean> visited
+        ) {
+            visited.put(currentDevice, true);
+            var waitingQueue = waitingQueuesForDevice.get(currentDevice);
+            if (waitingQueue == null || waitingQueue.isEmpty()) {
+                return false;
+            }
+            DeviceId sourceDeviceId;
+            for (ComponentId waitingComponent : waitingQueue) {
+                var optionalSourceDeviceId = componentPlacement.get(waitingComponent);
+                if (optionalSourceDeviceId.isEmpty()) {
+                    continue;
+                }
+                sourceDeviceId = optionalSourceDeviceId.get();
+                if (sourceDeviceId.equals(start)) {
+                    whoWantsMyPlace.put(currentComponent, waitingComponent);
+                    return true;
+                }
+                boolean isDeviceVisited = visited.getOrDefault(sourceDeviceId, false);
+                if (!isDeviceVisited) {
+                    whoWantsMyPlace.put(currentComponent, waitingComponent);
+                    if (findCycledTransfers(start, sourceDeviceId, waitingComponent, visited)) {
+                        return true;
+                    }
+                    whoWantsMyPlace.remove(currentComponent);
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package cp2023.benchmarks;
+
+import java.nio.file.Files;
+import java.util.HashMap;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.SystemSnapshot;
+
+// Compares starting a system from maps of ids, including building them, with starting it from a snapshot.
+// Usage: java cp2023.benchmarks.StartupBenchmark [components] [devices] [maps|snapshot|both]
+public final class StartupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int numOfComponents = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+        int numOfDevices = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        var mode = args.length > 2 ? args[2] : "both";
+        int numOfSlots = (numOfComponents + numOfDevices - 1) / numOfDevices;
+        System.out.println(numOfComponents + " components on " + numOfDevices + " devices.");
+
+        if (!mode.equals("snapshot")) {
+            long start = System.nanoTime();
+            var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+            for (int device = 0; device < numOfDevices; device++) {
+                deviceTotalSlots.put(new DeviceId(device), numOfSlots);
+            }
+            var componentPlacement = new HashMap<ComponentId, DeviceId>();
+            for (int component = 0; component < numOfComponents; component++) {
+                componentPlacement.put(new ComponentId(component), new DeviceId(component % numOfDevices));
+            }
+            long built = System.nanoTime();
+            StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement);
+            report("maps", built - start, System.nanoTime() - built);
+        }
+
+        if (!mode.equals("maps")) {
+            var deviceIds = new int[numOfDevices];
+            var deviceSlots = new int[numOfDevices];
+            for (int device = 0; device < numOfDevices; device++) {
+                deviceIds[device] = device;
+                deviceSlots[device] = numOfSlots;
+            }
+            var componentIds = new int[numOfComponents];
+            var componentDevices = new int[numOfComponents];
+            for (int component = 0; component < numOfComponents; component++) {
+                componentIds[component] = component;
+                componentDevices[component] = component % numOfDevices;
+            }
+            var snapshotPath = Files.createTempFile("cp2023-snapshot", ".bin");
+            try {
+                SystemSnapshot.write(snapshotPath, deviceIds, deviceSlots, componentIds, componentDevices);
+                componentIds = null;
+                componentDevices = null;
+                long start = System.nanoTime();
+                StorageSystemFactory.newSystem(snapshotPath);
+                report("snapshot", 0, System.nanoTime() - start);
+            } finally {
+                Files.delete(snapshotPath);
+            }
+        }
+    }
+
+    private static void report(String name, long buildTime, long startTime) {
+        System.out.printf("%-8s: building input %.3f s, newSystem %.3f s, heap used %d MB%n", name, buildTime / 1e9,
+            startTime / 1e9, (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory()) >> 20);
+    }
+}
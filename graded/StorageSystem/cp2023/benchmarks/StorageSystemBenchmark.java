@@ -0,0 +1,416 @@
+package cp2023.benchmarks;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.AsyncStorageSystem;
+import cp2023.solution.StorageSystemFactory;
+
+// Throughput and latency of the storage system, measured like JMH does: a trial per scenario on a fresh system,
+// with warmup and measurement iterations of fixed duration. Transfers do nothing in prepare() and perform(),
+// so only the coordination is measured.
+//
+// Scenarios:
+//   uncontended  - every thread moves its own component between its own two devices
+//   hot-device   - every thread moves its component between its own device and one shared device with few slots
+//   long-chain   - devices in a line, all full but the last one, every component moves one device further
+//   short-cycles - full devices in groups of cycleLength, every device sends a component to the next in its group
+//   mixed        - random moves, removals and additions, with destinations being a permutation of the places
+// The first two run one execute() at a time in every thread. The rest run rounds of transfers submitted
+// together with executeAsync() on a pool of threads, each round waiting for the previous one.
+//
+// Usage: java cp2023.benchmarks.StorageSystemBenchmark [scenario|all] [key=value...]
+// Keys: devices, slots, threads, cycleLength, warmup, iterations, seconds, seed.
+public final class StorageSystemBenchmark {
+    private static final Map<String, String> DEFAULTS = Map.of(
+        "devices", "64",
+        "slots", "4",
+        "threads", String.valueOf(Runtime.getRuntime().availableProcessors()),
+        "cycleLength", "2",
+        "warmup", "3",
+        "iterations", "5",
+        "seconds", "1",
+        "seed", "42"
+    );
+    private static final List<String> SCENARIOS = List.of(
+        "uncontended", "hot-device", "long-chain", "short-cycles", "mixed"
+    );
+
+    private final Map<String, String> params;
+
+    private StorageSystemBenchmark(Map<String, String> params) {
+        this.params = params;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String scenario = "all";
+        var params = new HashMap<>(DEFAULTS);
+        for (var arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator == -1) {
+                scenario = arg;
+            } else if (DEFAULTS.containsKey(arg.substring(0, separator))) {
+                params.put(arg.substring(0, separator), arg.substring(separator + 1));
+            } else {
+                throw new IllegalArgumentException("Unknown parameter " + arg);
+            }
+        }
+        var benchmark = new StorageSystemBenchmark(params);
+        System.out.println("# " + new TreeMap<>(params));
+        System.out.printf("%-14s %6s %4s %14s %12s %8s %10s %10s %10s%n",
+            "Benchmark", "Mode", "Cnt", "Score", "Error", "Units", "p50 [us]", "p99 [us]", "max [us]");
+        for (var name : scenario.equals("all") ? SCENARIOS : List.of(scenario)) {
+            benchmark.run(name);
+        }
+    }
+
+    private int param(String name) {
+        return Integer.parseInt(params.get(name));
+    }
+
+    private void run(String scenario) throws Exception {
+        int numOfDevices = param("devices");
+        int numOfSlots = param("slots");
+        int numOfThreads = param("threads");
+        var random = new Random(param("seed"));
+        Workload workload = switch (scenario) {
+            case "uncontended" -> PingPong.uncontended(numOfDevices, numOfSlots, numOfThreads);
+            case "hot-device" -> PingPong.hotDevice(numOfDevices, numOfSlots, numOfThreads);
+            case "long-chain" -> new LongChain(numOfDevices, numOfSlots);
+            case "short-cycles" -> new ShortCycles(numOfDevices, numOfSlots, param("cycleLength"));
+            case "mixed" -> new Mixed(numOfDevices, numOfSlots, random);
+            default -> throw new IllegalArgumentException("Unknown scenario " + scenario);
+        };
+        var system = StorageSystemFactory.newAsyncSystem(workload.deviceTotalSlots, workload.componentPlacement);
+        long iterationTime = TimeUnit.SECONDS.toNanos(param("seconds"));
+        for (int i = 0; i < param("warmup"); i++) {
+            workload.iterate(system, numOfThreads, iterationTime);
+        }
+        var scores = new double[param("iterations")];
+        var latencies = new LatencySamples();
+        for (int i = 0; i < scores.length; i++) {
+            var result = workload.iterate(system, numOfThreads, iterationTime);
+            scores[i] = result.operations / (result.time / 1e9);
+            latencies.addAll(result.latencies);
+        }
+        double mean = Arrays.stream(scores).average().orElse(0);
+        double deviation = Math.sqrt(Arrays.stream(scores).map(score -> (score - mean) * (score - mean)).sum() /
+            Math.max(1, scores.length - 1));
+        System.out.printf("%-14s %6s %4d %14.1f +- %9.1f %8s %10.1f %10.1f %10.1f%n",
+            scenario, "thrpt", scores.length, mean, deviation, "ops/s",
+            latencies.percentile(0.5) / 1e3, latencies.percentile(0.99) / 1e3, latencies.percentile(1) / 1e3);
+    }
+
+    private record Result(long operations, long time, LatencySamples latencies) {
+    }
+
+    private abstract static class Workload {
+        final Map<DeviceId, Integer> deviceTotalSlots = new HashMap<>();
+        final Map<ComponentId, DeviceId> componentPlacement = new HashMap<>();
+
+        abstract Result iterate(AsyncStorageSystem system, int numOfThreads, long iterationTime) throws Exception;
+
+        void addDevices(int numOfDevices, int numOfSlots) {
+            for (int i = 0; i < numOfDevices; i++) {
+                deviceTotalSlots.put(new DeviceId(i), numOfSlots);
+            }
+        }
+    }
+
+    // Every thread moves its own component back and forth between two devices, one transfer at a time.
+    private static final class PingPong extends Workload {
+        private final int[] homes;
+        private final int[] destinations;
+
+        private PingPong(int[] homes, int[] destinations, int numOfDevices, int numOfSlots) {
+            this.homes = homes;
+            this.destinations = destinations;
+            addDevices(numOfDevices, numOfSlots);
+            for (int i = 0; i < homes.length; i++) {
+                componentPlacement.put(new ComponentId(i), new DeviceId(homes[i]));
+            }
+        }
+
+        static PingPong uncontended(int numOfDevices, int numOfSlots, int numOfThreads) {
+            if (numOfDevices < 2 * numOfThreads) {
+                throw new IllegalArgumentException("uncontended needs at least two devices per thread");
+            }
+            var homes = new int[numOfThreads];
+            var destinations = new int[numOfThreads];
+            for (int i = 0; i < numOfThreads; i++) {
+                homes[i] = 2 * i;
+                destinations[i] = 2 * i + 1;
+            }
+            return new PingPong(homes, destinations, numOfDevices, numOfSlots);
+        }
+
+        static PingPong hotDevice(int numOfDevices, int numOfSlots, int numOfThreads) {
+            if (numOfDevices < numOfThreads + 1) {
+                throw new IllegalArgumentException("hot-device needs a device per thread and the shared one");
+            }
+            var homes = new int[numOfThreads];
+            var destinations = new int[numOfThreads];
+            for (int i = 0; i < numOfThreads; i++) {
+                homes[i] = i + 1;
+                destinations[i] = 0;
+            }
+            return new PingPong(homes, destinations, numOfDevices, numOfSlots);
+        }
+
+        @Override
+        Result iterate(AsyncStorageSystem system, int numOfThreads, long iterationTime) throws Exception {
+            var operations = new long[numOfThreads];
+            var latencies = new LatencySamples[numOfThreads];
+            var threads = new Thread[numOfThreads];
+            long start = System.nanoTime();
+            long deadline = start + iterationTime;
+            for (int i = 0; i < numOfThreads; i++) {
+                int thread = i;
+                latencies[thread] = new LatencySamples();
+                threads[thread] = new Thread(() -> {
+                    var there = new Move(thread, homes[thread], destinations[thread]);
+                    var back = new Move(thread, destinations[thread], homes[thread]);
+                    while (System.nanoTime() < deadline) {
+                        latencies[thread].add(execute(system, there));
+                        latencies[thread].add(execute(system, back));
+                        operations[thread] += 2;
+                    }
+                });
+                threads[thread].start();
+            }
+            var allLatencies = new LatencySamples();
+            long numOfOperations = 0;
+            for (int i = 0; i < numOfThreads; i++) {
+                threads[i].join();
+                allLatencies.addAll(latencies[i]);
+                numOfOperations += operations[i];
+            }
+            return new Result(numOfOperations, System.nanoTime() - start, allLatencies);
+        }
+
+        private static long execute(AsyncStorageSystem system, Move move) {
+            long start = System.nanoTime();
+            try {
+                system.execute(move);
+            } catch (TransferException e) {
+                throw new RuntimeException("Unexpected transfer exception: " + e, e);
+            }
+            return System.nanoTime() - start;
+        }
+    }
+
+    // Rounds of transfers which can only finish together, submitted at once. Latency is measured per round.
+    private abstract static class Rounds extends Workload {
+        abstract List<Move> nextRound();
+
+        @Override
+        Result iterate(AsyncStorageSystem system, int numOfThreads, long iterationTime) throws Exception {
+            ExecutorService executor = Executors.newFixedThreadPool(numOfThreads);
+            var latencies = new LatencySamples();
+            long operations = 0;
+            long start = System.nanoTime();
+            long deadline = start + iterationTime;
+            try {
+                while (System.nanoTime() < deadline) {
+                    var round = nextRound();
+                    long roundStart = System.nanoTime();
+                    var futures = new CompletableFuture<?>[round.size()];
+                    for (int i = 0; i < futures.length; i++) {
+                        futures[i] = system.executeAsync(round.get(i), executor);
+                    }
+                    CompletableFuture.allOf(futures).get();
+                    latencies.add(System.nanoTime() - roundStart);
+                    operations += round.size();
+                }
+            } finally {
+                executor.shutdown();
+            }
+            return new Result(operations, System.nanoTime() - start, latencies);
+        }
+    }
+
+    // Component i goes between devices i and i + 1, forward and backward in turns.
+    private static final class LongChain extends Rounds {
+        private final int numOfDevices;
+        private final int numOfSlots;
+        private boolean forward;
+
+        LongChain(int numOfDevices, int numOfSlots) {
+            this.numOfDevices = numOfDevices;
+            this.numOfSlots = numOfSlots;
+            this.forward = true;
+            addDevices(numOfDevices, numOfSlots);
+            int component = 0;
+            for (int device = 0; device < numOfDevices; device++) {
+                // the last device has one free place
+                for (int i = 0; i < (device == numOfDevices - 1 ? numOfSlots - 1 : numOfSlots); i++) {
+                    componentPlacement.put(new ComponentId(component++), new DeviceId(device));
+                }
+            }
+        }
+
+        @Override
+        List<Move> nextRound() {
+            var round = new ArrayList<Move>(numOfDevices - 1);
+            for (int device = 0; device + 1 < numOfDevices; device++) {
+                // the first component of every device is the one which moves
+                int component = device * numOfSlots;
+                round.add(forward ? new Move(component, device, device + 1) : new Move(component, device + 1, device));
+            }
+            forward = !forward;
+            return round;
+        }
+    }
+
+    // Every device sends its longest staying component to the next device of its group.
+    private static final class ShortCycles extends Rounds {
+        private final int cycleLength;
+        private final List<ArrayDeque<Integer>> residents;
+
+        ShortCycles(int numOfDevices, int numOfSlots, int cycleLength) {
+            if (cycleLength < 2 || numOfDevices < cycleLength) {
+                throw new IllegalArgumentException("short-cycles needs 2 <= cycleLength <= devices");
+            }
+            this.cycleLength = cycleLength;
+            this.residents = new ArrayList<>();
+            int numOfUsedDevices = numOfDevices - numOfDevices % cycleLength;
+            addDevices(numOfUsedDevices, numOfSlots);
+            int component = 0;
+            for (int device = 0; device < numOfUsedDevices; device++) {
+                var deviceResidents = new ArrayDeque<Integer>();
+                for (int i = 0; i < numOfSlots; i++) {
+                    componentPlacement.put(new ComponentId(component), new DeviceId(device));
+                    deviceResidents.add(component++);
+                }
+                residents.add(deviceResidents);
+            }
+        }
+
+        @Override
+        List<Move> nextRound() {
+            var round = new ArrayList<Move>(residents.size());
+            var leaving = new int[residents.size()];
+            for (int device = 0; device < residents.size(); device++) {
+                leaving[device] = residents.get(device).poll();
+            }
+            for (int device = 0; device < residents.size(); device++) {
+                int group = device - device % cycleLength;
+                int next = group + (device - group + 1) % cycleLength;
+                round.add(new Move(leaving[device], device, next));
+                residents.get(next).add(leaving[device]);
+            }
+            return round;
+        }
+    }
+
+    // A random part of the components moves to a permutation of their places, some are removed and replaced.
+    private static final class Mixed extends Rounds {
+        private final Random random;
+        private final List<Integer> components;
+        private final Map<Integer, Integer> placement;
+        private int nextComponent;
+
+        Mixed(int numOfDevices, int numOfSlots, Random random) {
+            this.random = random;
+            this.components = new ArrayList<>();
+            this.placement = new HashMap<>();
+            addDevices(numOfDevices, numOfSlots);
+            for (int device = 0; device < numOfDevices; device++) {
+                for (int i = 0; i < Math.max(1, numOfSlots / 2); i++) {
+                    componentPlacement.put(new ComponentId(nextComponent), new DeviceId(device));
+                    components.add(nextComponent);
+                    placement.put(nextComponent++, device);
+                }
+            }
+        }
+
+        @Override
+        List<Move> nextRound() {
+            Collections.shuffle(components, random);
+            int numOfChosen = 1 + random.nextInt(components.size());
+            var chosen = new ArrayList<>(components.subList(0, numOfChosen));
+            var destinations = new ArrayList<Integer>();
+            for (int component : chosen) {
+                destinations.add(placement.get(component));
+            }
+            Collections.shuffle(destinations, random);
+            var round = new ArrayList<Move>();
+            for (int i = 0; i < numOfChosen; i++) {
+                int component = chosen.get(i);
+                int source = placement.get(component);
+                int destination = destinations.get(i);
+                if (random.nextInt(8) == 0) {
+                    // the place this component would take goes to a new one instead
+                    round.add(new Move(component, source, -1));
+                    round.add(new Move(nextComponent, -1, destination));
+                    placement.remove(component);
+                    components.remove((Integer) component);
+                    components.add(nextComponent);
+                    placement.put(nextComponent++, destination);
+                } else if (source != destination) {
+                    round.add(new Move(component, source, destination));
+                    placement.put(component, destination);
+                }
+            }
+            return round;
+        }
+    }
+
+    private record Move(int component, int source, int destination) implements ComponentTransfer {
+        @Override
+        public ComponentId getComponentId() {
+            return new ComponentId(component);
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return source < 0 ? null : new DeviceId(source);
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return destination < 0 ? null : new DeviceId(destination);
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void perform() {
+        }
+    }
+
+    private static final class LatencySamples {
+        private long[] samples = new long[1024];
+        private int size;
+
+        void add(long nanos) {
+            if (size == samples.length) {
+                samples = Arrays.copyOf(samples, 2 * size);
+            }
+            samples[size++] = nanos;
+        }
+
+        void addAll(LatencySamples other) {
+            for (int i = 0; i < other.size; i++) {
+                add(other.samples[i]);
+            }
+        }
+
+        double percentile(double fraction) {
+            if (size == 0) {
+                return 0;
+            }
+            Arrays.sort(samples, 0, size);
+            return samples[(int) Math.min(size - 1, Math.max(0, Math.ceil(fraction * size) - 1))];
+        }
+    }
+}
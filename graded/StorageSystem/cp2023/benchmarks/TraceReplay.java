@@ -0,0 +1,152 @@
+package cp2023.benchmarks;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.TransferTrace;
+
+// Feeds a recorded trace into a fresh storage system, starting every transfer in its own thread
+// at its recorded arrival time, but not before the previous transfer of its component has completed,
+// as the trace is valid only in its own order. Waiting for it counts into the latency.
+// prepare() and perform() take as long as they did when recorded.
+// speed > 1 shortens all of these times, speed 0 starts all transfers at once without delays.
+// Compares the latency of execute() with the recorded one.
+// Usage: java cp2023.benchmarks.TraceReplay <trace> [speed]
+public final class TraceReplay {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            throw new IllegalArgumentException("Usage: TraceReplay <trace> [speed]");
+        }
+        var trace = TransferTrace.read(Path.of(args[0]));
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1;
+        var system = StorageSystemFactory.newSystem(trace.deviceTotalSlots(), trace.componentPlacement());
+        var records = trace.records();
+        System.out.println("Replaying " + records.size() + " transfers on " + trace.deviceTotalSlots().size() +
+            " devices at speed " + speed + ".");
+
+        long start = System.nanoTime();
+        var result = replay(trace, system, speed);
+        long time = System.nanoTime() - start;
+
+        var recordedLatencies = new long[records.size()];
+        int numOfRecordedFailures = 0;
+        for (int i = 0; i < records.size(); i++) {
+            recordedLatencies[i] = records.get(i).latency();
+            numOfRecordedFailures += records.get(i).failed() ? 1 : 0;
+        }
+        long recordedSpan = records.isEmpty() ? 0 : records.get(records.size() - 1).arrival();
+        System.out.printf("recorded: span %.3f s, %d failed, latency p50 %.1f us, p99 %.1f us, max %.1f us%n",
+            recordedSpan / 1e9, numOfRecordedFailures, percentile(recordedLatencies, 0.5) / 1e3,
+            percentile(recordedLatencies, 0.99) / 1e3, percentile(recordedLatencies, 1) / 1e3);
+        System.out.printf("replayed: time %.3f s, %d failed, latency p50 %.1f us, p99 %.1f us, max %.1f us%n",
+            time / 1e9, result.failures(), percentile(result.latencies(), 0.5) / 1e3,
+            percentile(result.latencies(), 0.99) / 1e3, percentile(result.latencies(), 1) / 1e3);
+    }
+
+    public record Result(long[] latencies, int failures) {
+    }
+
+    // The system has to be in the initial state of the trace. Latencies are in the order of records.
+    public static Result replay(TransferTrace trace, StorageSystem system, double speed) throws InterruptedException {
+        var records = trace.records();
+        var latencies = new long[records.size()];
+        var failures = new AtomicInteger();
+        var threads = new ArrayList<Thread>(records.size());
+        var lastThreads = new HashMap<ComponentId, Thread>(); // of the last transfer of every component
+        long start = System.nanoTime();
+        for (int i = 0; i < records.size(); i++) {
+            var record = records.get(i);
+            waitUntil(start + scale(record.arrival(), speed));
+            int index = i;
+            var previous = lastThreads.get(record.componentId());
+            var thread = new Thread(() -> {
+                long executeStart = System.nanoTime();
+                try {
+                    if (previous != null) {
+                        previous.join();
+                    }
+                    system.execute(new ReplayedTransfer(record, speed));
+                } catch (TransferException e) {
+                    failures.incrementAndGet();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                latencies[index] = System.nanoTime() - executeStart;
+            });
+            thread.start();
+            threads.add(thread);
+            lastThreads.put(record.componentId(), thread);
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        return new Result(latencies, failures.get());
+    }
+
+    private static long scale(long nanos, double speed) {
+        return speed == 0 ? 0 : (long) (nanos / speed);
+    }
+
+    private static void waitUntil(long deadline) {
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+        }
+    }
+
+    private static double percentile(long[] values, double fraction) {
+        if (values.length == 0) {
+            return 0;
+        }
+        var sorted = values.clone();
+        Arrays.sort(sorted);
+        return sorted[(int) Math.min(sorted.length - 1, Math.max(0, Math.ceil(fraction * sorted.length) - 1))];
+    }
+
+    private static final class ReplayedTransfer implements ComponentTransfer {
+        private final TransferTrace.Record record;
+        private final double speed;
+
+        ReplayedTransfer(TransferTrace.Record record, double speed) {
+            this.record = record;
+            this.speed = speed;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return record.componentId();
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return record.sourceDeviceId();
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return record.destinationDeviceId();
+        }
+
+        @Override
+        public void prepare() {
+            waitUntil(System.nanoTime() + scale(record.prepareTime(), speed));
+        }
+
+        @Override
+        public void perform() {
+            waitUntil(System.nanoTime() + scale(record.performTime(), speed));
+        }
+    }
+}
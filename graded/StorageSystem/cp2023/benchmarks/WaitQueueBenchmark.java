@@ -0,0 +1,96 @@
+package cp2023.benchmarks;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.solution.StorageSystemFactory;
+
+// Queues components from n full devices for the only slot of a hot device, then moves the component on
+// the hot device to each of those devices in turn. Every move closes a cycle with one of the waiting
+// components, which has to be found in and removed from the queue of the hot device.
+// All transfers are asynchronous and run by the main thread, so no thread waits.
+// Usage: java cp2023.benchmarks.WaitQueueBenchmark [waiters] [rounds]
+public final class WaitQueueBenchmark {
+
+    public static void main(String[] args) {
+        int numOfWaiters = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        System.out.println(numOfWaiters + " waiters on one device, " + rounds + " rounds.");
+        for (int round = 1; round <= rounds; round++) {
+            runRound(round, numOfWaiters);
+        }
+    }
+
+    private static void runRound(int round, int numOfWaiters) {
+        var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+        var componentPlacement = new HashMap<ComponentId, DeviceId>();
+        for (int device = 0; device <= numOfWaiters; device++) {
+            deviceTotalSlots.put(new DeviceId(device), 1);
+            componentPlacement.put(new ComponentId(device), new DeviceId(device));
+        }
+        var system = StorageSystemFactory.newAsyncSystem(deviceTotalSlots, componentPlacement);
+        var tasks = new ArrayDeque<Runnable>();
+        Executor executor = tasks::add;
+
+        long start = System.nanoTime();
+        for (int i = 1; i <= numOfWaiters; i++) {
+            system.executeAsync(new Move(i, i, 0), executor);
+        }
+        long queued = System.nanoTime();
+        // the hot device is visited from the middle of its queue outwards, in both directions
+        int current = 0;
+        for (int step = 0; step < numOfWaiters; step++) {
+            int offset = (step + 1) / 2;
+            int next = numOfWaiters / 2 + (step % 2 == 0 ? offset : -offset) + 1;
+            var moved = system.executeAsync(new Move(current, 0, next), executor);
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+            moved.join();
+            current = next;
+        }
+        long released = System.nanoTime();
+        System.out.printf("round %d: queueing %.1f ms, releasing cycles %.1f ms (%.2f us per cycle)%n", round,
+            (queued - start) / 1e6, (released - queued) / 1e6, (released - queued) / 1e3 / numOfWaiters);
+    }
+
+    private static final class Move implements ComponentTransfer {
+        private final int component;
+        private final int source;
+        private final int destination;
+
+        Move(int component, int source, int destination) {
+            this.component = component;
+            this.source = source;
+            this.destination = destination;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return new ComponentId(component);
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return new DeviceId(source);
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return new DeviceId(destination);
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void perform() {
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package cp2023.solution;
+
+import cp2023.base.DeviceId;
+
+// Caps the number of transfers waiting in line for a place on a single device, those which chains and cycles
+// are released from first. What happens to a transfer arriving at a device with the cap reached depends
+// on the policy:
+// DEFER - it is deferred: it waits behind all of the waiting ones, and joins them once one leaves.
+// FAIL - execute() throws DeviceOverloaded, as if the transfer had never been executed.
+// CALLBACK - as with DEFER, but the listener is told when the device starts and stops deferring transfers.
+// Deferring holds nobody back: deferred transfers are not limited, and they keep their handles and their
+// wait-for edges. They have to, as a caller held back outside of the wait-for graph could be needed by
+// a cycle which would then never be found. Only FAIL limits the transfers in the system, and even then
+// a transfer which may close a cycle is queued over the cap, for the same reason.
+// Transfers of a batch are deferred under every policy, as some of the batch may have started already.
+public final class AdmissionControl {
+    static final AdmissionControl UNLIMITED = new AdmissionControl(Integer.MAX_VALUE, Policy.DEFER, null);
+
+    public enum Policy {
+        DEFER,
+        FAIL,
+        CALLBACK
+    }
+
+    // Called with the device locked, so it must be quick and must not execute transfers.
+    public interface Listener {
+        void onOverloaded(DeviceId deviceId);
+
+        void onRelieved(DeviceId deviceId);
+    }
+
+    final int maxWaitersPerDevice;
+    final Policy policy;
+    private final Listener listener; // null unless CALLBACK
+
+    private AdmissionControl(int maxWaitersPerDevice, Policy policy, Listener listener) {
+        if (maxWaitersPerDevice < 1) {
+            throw new IllegalArgumentException("maxWaitersPerDevice must be positive");
+        }
+        this.maxWaitersPerDevice = maxWaitersPerDevice;
+        this.policy = policy;
+        this.listener = listener;
+    }
+
+    public static AdmissionControl deferring(int maxWaitersPerDevice) {
+        return new AdmissionControl(maxWaitersPerDevice, Policy.DEFER, null);
+    }
+
+    public static AdmissionControl failing(int maxWaitersPerDevice) {
+        return new AdmissionControl(maxWaitersPerDevice, Policy.FAIL, null);
+    }
+
+    public static AdmissionControl withCallback(int maxWaitersPerDevice, Listener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("listener is null");
+        }
+        return new AdmissionControl(maxWaitersPerDevice, Policy.CALLBACK, listener);
+    }
+
+    public int maxWaitersPerDevice() {
+        return maxWaitersPerDevice;
+    }
+
+    public Policy policy() {
+        return policy;
+    }
+
+    void overloaded(DeviceId deviceId) {
+        if (listener != null) {
+            listener.onOverloaded(deviceId);
+        }
+    }
+
+    void relieved(DeviceId deviceId) {
+        if (listener != null) {
+            listener.onRelieved(deviceId);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+public interface AsyncStorageSystem extends StorageSystem {
+
+    // Same as execute(), but gives up if the transfer is not allowed to start within the timeout. It is then
+    // withdrawn, as if it had never been executed, and TimeoutException is thrown. Once the transfer is allowed
+    // to start, it is carried out as usual, without any time limit.
+    void execute(ComponentTransfer transfer, Duration timeout) throws TransferException, TimeoutException;
+
+    // Same as execute(), but returns WOULD_WAIT instead of waiting, before running prepare(), as if the transfer
+    // had never been executed. It is never queued, so it does not close cycles with queued transfers either.
+    TransferOutcome tryExecute(ComponentTransfer transfer);
+
+    // Adds the component to a device chosen by the policy among those accepting components, and returns it.
+    // transferTo gives the transfer adding the component to the chosen device, which is then executed.
+    // The policy looks at free places, so the component waits only if its place is taken just before.
+    DeviceId executePlaced(ComponentId componentId, PlacementPolicy policy,
+                           Function<DeviceId, ComponentTransfer> transferTo) throws TransferException;
+
+    // Same as execute(), but no thread waits while the transfer is not permitted. prepare() and perform()
+    // are run on the executor, which must not reject tasks. Transfer exceptions complete the future.
+    CompletableFuture<Void> executeAsync(ComponentTransfer transfer, Executor executor);
+
+    // Executes the transfers together: either all of them are accepted or the first exception is thrown.
+    // They are admitted in a single step, in which chains and cycles within the batch are released at once.
+    // prepare() and perform() are run in the calling thread, one at a time, as the system has no threads
+    // of its own. A transfer whose prepare() or perform() throws does not stop the others, its exception
+    // is thrown once all of them are done.
+    void executeAll(Collection<? extends ComponentTransfer> transfers) throws TransferException;
+
+    // Same as executeAll(), but prepare() and perform() are run on the executor, so that transfers released
+    // together run in parallel, while the calling thread waits for all of them.
+    void executeAll(Collection<? extends ComponentTransfer> transfers, Executor executor) throws TransferException;
+
+    // Same as executeAll(), but returns at once, the future fails with the exception of any failed transfer.
+    CompletableFuture<Void> executeAllAsync(Collection<? extends ComponentTransfer> transfers, Executor executor);
+
+    // Recording is disabled until enabled with StorageSystemMetrics.setEnabled().
+    StorageSystemMetrics metrics();
+
+    // Adds an empty device, which transfers may use as soon as this returns. A journaled system journals
+    // added, resized and removed devices, so it is recovered with the devices it was created with.
+    void addDevice(DeviceId deviceId, int numOfSlots);
+
+    // New places go to the transfers waiting for the device first, in the order in which they would be
+    // admitted anyway. Places taken away stay occupied until components leave the device, and are not
+    // handed over to the transfers waiting for it until then.
+    void resizeDevice(DeviceId deviceId, int numOfSlots);
+
+    // Transfers to the device are not accepted from now on, then this waits until all of its components,
+    // also those brought by transfers accepted before, leave it in transfers executed by other threads,
+    // and removes the device. Transfers to it which had been accepted but found it removed throw
+    // DeviceDoesNotExist without running prepare().
+    void drainAndRemoveDevice(DeviceId deviceId);
+
+}
@@ -3,231 +3,1237 @@ package cp2023.solution;
 import cp2023.base.ComponentId;
 import cp2023.base.ComponentTransfer;
 import cp2023.base.DeviceId;
-import cp2023.base.StorageSystem;
 import cp2023.exceptions.*;
 
+import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedDeque;
-import java.util.concurrent.Semaphore;
-
-public class CP2023StorageSystem implements StorageSystem {
-    private final HashMap<DeviceId, Integer> numOfPlacesLeftOnDevice;
-    private final ConcurrentHashMap<ComponentId, Optional<DeviceId>> componentPlacement;
-    private final ConcurrentHashMap<ComponentId, Boolean> transferredComponents; // used when checking if the component is operated on
-    private final ConcurrentHashMap<ComponentId, Semaphore> readyToPrepareTransferSync; // wait when transfer is not permitted
-    private final ConcurrentHashMap<ComponentId, Semaphore> readyToPerformTransferSync; // wait for releasing component to finish prepare()
-    private final ConcurrentHashMap<DeviceId, ConcurrentLinkedDeque<ComponentId>> componentsLeavingFreePlaceOnDevice;
-    private final HashMap<DeviceId, Deque<ComponentId>> waitingQueuesForDevice; // main structure for storing transfer graph
-    private final HashMap<ComponentId, ComponentId> whoWantsMyPlace; // used for reserving places when breaking chain/cycle
-    private final Semaphore readyToDetectAllowedTransfers;
-    private ComponentId latestReleasingComponent; // remember who released us
-    private boolean releasingCycledTransfers; // remember whether we are releasing chained or cycled transfers
-
-    public CP2023StorageSystem(HashMap<DeviceId, Integer> numOfPlacesLeftOnDevice,
-                               ConcurrentHashMap<ComponentId, Optional<DeviceId>> componentPlacement) {
-        this.numOfPlacesLeftOnDevice = numOfPlacesLeftOnDevice;
-        this.componentPlacement = componentPlacement;
-        this.transferredComponents = new ConcurrentHashMap<>();
-        this.readyToPrepareTransferSync = new ConcurrentHashMap<>();
-        this.readyToPerformTransferSync = new ConcurrentHashMap<>();
-        this.componentsLeavingFreePlaceOnDevice = new ConcurrentHashMap<>();
-        this.waitingQueuesForDevice = new HashMap<>();
-        this.whoWantsMyPlace = new HashMap<>();
-        this.readyToDetectAllowedTransfers = new Semaphore(1);
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+// Transfers are coordinated per device: a transfer locks only the devices it reads or modifies,
+// so transfers between unrelated devices never contend. Only releasing a cycle locks more than
+// one device at a time, always in the order of device indexes. The wait-for graph has its own lock,
+// always taken last. A transfer to a device with a free place or a leaving component locks no device at all,
+// unless someone waits for its place on the source device.
+public class CP2023StorageSystem implements AsyncStorageSystem {
+    private static final int PADDING = 16; // ints per cache line, so counters of different devices never share one
+    private static final int DEVICES_PER_CHUNK = 16; // counters of free places allocated at once for added devices
+
+    private final ReentrantLock devicesLock; // guards changes of the set of devices, taken before device locks
+    private volatile Devices devices;
+    private AtomicIntegerArray freePlacesChunk; // of devices added last, guarded by devicesLock
+    private int numOfFreePlacesChunkDevices;
+    private final CycleDetector waitForGraph; // main structure for detecting cycles
+    private final ComponentTable components;
+    private final PendingTransferPool pendingTransfers;
+    private final StorageSystemMetrics metrics;
+    private final PlacementJournal journal; // null if the placement is not persisted
+    private final AdmissionControl admissionControl;
+
+    // Devices replaced as a whole whenever one is added, drained or removed, so that transfers look them up
+    // without locks. They are also the candidates for placing new components.
+    private static final class Devices implements PlacementPolicy.Candidates {
+        final IntIntHashMap indexes; // of devices in the system, read-only
+        final DeviceState[] byIndex; // also of removed devices, whose components may still be leaving them
+        final DeviceState[] accepting; // in the system and not drained
+
+        Devices(IntIntHashMap indexes, DeviceState[] byIndex, DeviceState[] accepting) {
+            this.indexes = indexes;
+            this.byIndex = byIndex;
+            this.accepting = accepting;
+        }
+
+        @Override
+        public int size() {
+            return accepting.length;
+        }
+
+        @Override
+        public DeviceId idAt(int position) {
+            return accepting[position].id;
+        }
+
+        @Override
+        public int freePlacesAt(int position) {
+            var device = accepting[position];
+            return device.freePlaces.get(device.freePlacesSlot);
+        }
+    }
+
+    // Devices are identified by their indexes in deviceIds, see StorageSystemFactory.
+    CP2023StorageSystem(DeviceId[] deviceIds, IntIntHashMap deviceIndexes, int[] numOfSlots, int[] numOfFreePlaces,
+                        ComponentTable components, CycleDetector waitForGraph, PlacementJournal journal,
+                        AdmissionControl admissionControl) {
+        this.devicesLock = new ReentrantLock();
+        var devicesByIndex = new DeviceState[deviceIds.length];
+        this.freePlacesChunk = new AtomicIntegerArray(deviceIds.length * PADDING);
+        for (int i = 0; i < deviceIds.length; i++) {
+            devicesByIndex[i] = new DeviceState(deviceIds[i], i, numOfSlots[i], freePlacesChunk, i * PADDING);
+            freePlacesChunk.set(i * PADDING, numOfFreePlaces[i]);
+            // devices removed before recovering from a journal keep their indexes, but not their ids
+            if (deviceIndexes.get(Ids.idOf(deviceIds[i]), -1) != i) {
+                devicesByIndex[i].draining = true;
+                devicesByIndex[i].removed = true;
+            }
+        }
+        this.numOfFreePlacesChunkDevices = deviceIds.length;
+        var accepting = Arrays.stream(devicesByIndex)
+            .filter(device -> !device.removed)
+            .toArray(DeviceState[]::new);
+        this.devices = new Devices(deviceIndexes, devicesByIndex, accepting);
+        this.waitForGraph = waitForGraph;
+        this.components = components;
+        this.pendingTransfers = new PendingTransferPool();
+        this.metrics = new StorageSystemMetrics(this);
+        this.journal = journal;
+        this.admissionControl = admissionControl;
     }
 
     @Override
     public void execute(ComponentTransfer transfer) throws TransferException {
+        var pendingTransfer = accept(transfer);
+        if (!tryAdmit(pendingTransfer)) {
+            pendingTransfer.awaitAdmission();
+        }
+        executeAdmitted(pendingTransfer);
+    }
+
+    @Override
+    public void execute(ComponentTransfer transfer, Duration timeout) throws TransferException, TimeoutException {
+        if (timeout == null) {
+            throw new IllegalArgumentException("timeout is null");
+        }
+        var pendingTransfer = accept(transfer);
+        if (!tryAdmit(pendingTransfer) && !pendingTransfer.awaitAdmission(TimeUnit.NANOSECONDS.convert(timeout))) {
+            if (withdraw(pendingTransfer)) {
+                metrics.recordTimedOut();
+                throw new TimeoutException(
+                    "Transfer of component " + transfer.getComponentId() + " not allowed to start within " + timeout
+                );
+            }
+            // admitted just now, admit() may still be on its way
+            pendingTransfer.awaitAdmission();
+        }
+        executeAdmitted(pendingTransfer);
+    }
+
+    @Override
+    public TransferOutcome tryExecute(ComponentTransfer transfer) {
+        PendingTransfer pendingTransfer;
+        try {
+            pendingTransfer = accept(transfer);
+        } catch (TransferException e) {
+            return TransferOutcome.REJECTED;
+        }
+        if (!tryAdmitWithoutQueueing(pendingTransfer)) {
+            reject(pendingTransfer);
+            metrics.recordTurnedAway();
+            return TransferOutcome.WOULD_WAIT;
+        }
+        executeAdmitted(pendingTransfer);
+        return TransferOutcome.COMPLETED;
+    }
+
+    @Override
+    public DeviceId executePlaced(ComponentId componentId, PlacementPolicy policy,
+                                  Function<DeviceId, ComponentTransfer> transferTo) throws TransferException {
+        if (componentId == null || policy == null || transferTo == null) {
+            throw new IllegalArgumentException("componentId, policy or transferTo is null");
+        }
+        var candidates = devices;
+        if (candidates.size() == 0) {
+            throw new IllegalStateException("No device accepts components");
+        }
+        int position = policy.choose(componentId, candidates);
+        if (position < 0 || position >= candidates.size()) {
+            throw new IllegalStateException("Policy chose device number " + position + " of " + candidates.size());
+        }
+        var deviceId = candidates.idAt(position);
+        var transfer = transferTo.apply(deviceId);
+        if (transfer == null || !componentId.equals(transfer.getComponentId()) ||
+            transfer.getSourceDeviceId() != null || !deviceId.equals(transfer.getDestinationDeviceId())) {
+            throw new IllegalArgumentException(
+                "transferTo has to give a transfer adding component " + componentId + " to device " + deviceId
+            );
+        }
+        execute(transfer);
+        return deviceId;
+    }
+
+    private void executeAdmitted(PendingTransfer pendingTransfer) {
+        prepare(pendingTransfer);
+        var whoFreedMe = pendingTransfer.whoFreedMe;
+        if (whoFreedMe != null) {
+            // someone freed this place, so we have to wait for its prepare() before doing perform()
+            pendingTransfer.preparedWaitAt = TransferEvents.startPreparedWait();
+            whoFreedMe.awaitPrepared(pendingTransfer);
+            TransferEvents.endPreparedWait(pendingTransfer);
+            pendingTransfers.release(whoFreedMe);
+        }
+        perform(pendingTransfer);
+    }
+
+    @Override
+    public CompletableFuture<Void> executeAsync(ComponentTransfer transfer, Executor executor) {
+        PendingTransfer pendingTransfer;
+        try {
+            pendingTransfer = accept(transfer);
+        } catch (TransferException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        var future = new CompletableFuture<Void>();
+        Runnable continuation = () -> prepareAsync(pendingTransfer);
+        // the handle has to be complete before reservePlace() publishes it
+        pendingTransfer.executor = executor;
+        pendingTransfer.future = future;
+        pendingTransfer.continuation = continuation;
+        // once queued, the transfer may finish on the executor before reservePlace() returns,
+        // so the handle must not be recycled until then
+        pendingTransfer.retain();
+        boolean admitted;
+        try {
+            admitted = tryAdmit(pendingTransfer);
+        } catch (DeviceOverloaded | DeviceDoesNotExist e) {
+            return CompletableFuture.failedFuture(e);
+        } finally {
+            pendingTransfers.release(pendingTransfer);
+        }
+        if (admitted) {
+            executor.execute(continuation);
+        }
+        return future;
+    }
+
+    @Override
+    public void executeAll(Collection<? extends ComponentTransfer> transfers) throws TransferException {
+        var executor = new CallingThreadExecutor();
+        var done = submitAll(transfers, executor);
+        executor.runUntilDone(done);
+        throwFailure(done);
+    }
+
+    @Override
+    public void executeAll(Collection<? extends ComponentTransfer> transfers, Executor executor)
+        throws TransferException {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor is null");
+        }
+        throwFailure(submitAll(transfers, executor));
+    }
+
+    // Waits for a batch and throws the exception one of its transfers has failed with, if any.
+    private static void throwFailure(CompletableFuture<Void> done) throws TransferException {
+        try {
+            done.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("panic: unexpected thread interruption");
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+            if (cause instanceof TransferException transferException) {
+                throw transferException;
+            }
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> executeAllAsync(Collection<? extends ComponentTransfer> transfers,
+                                                   Executor executor) {
+        try {
+            return submitAll(transfers, executor);
+        } catch (TransferException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private CompletableFuture<Void> submitAll(Collection<? extends ComponentTransfer> transfers, Executor executor)
+        throws TransferException {
+        var batch = new ArrayList<PendingTransfer>(transfers.size());
+        try {
+            for (var transfer : transfers) {
+                batch.add(accept(transfer));
+            }
+        } catch (TransferException e) {
+            for (var pendingTransfer : batch) {
+                reject(pendingTransfer);
+            }
+            throw e;
+        }
+        var futures = new CompletableFuture<?>[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            var pendingTransfer = batch.get(i);
+            futures[i] = pendingTransfer.future = new CompletableFuture<Void>();
+            pendingTransfer.executor = executor;
+            pendingTransfer.continuation = () -> prepareAsync(pendingTransfer);
+            // same as in executeAsync(), queued transfers may finish before planning does
+            pendingTransfer.retain();
+        }
+        var admitted = planBatch(batch);
+        if (!batch.isEmpty()) {
+            TransferEvents.released("BATCH", batch.get(0), admitted.size());
+        }
+        for (var pendingTransfer : admitted) {
+            executor.execute(pendingTransfer.continuation);
+        }
+        for (var pendingTransfer : batch) {
+            pendingTransfers.release(pendingTransfer);
+        }
+        return CompletableFuture.allOf(futures);
+    }
+
+    // Undoes accept() of a transfer which will not be executed.
+    private void reject(PendingTransfer pendingTransfer) {
+        int component = Ids.idOf(pendingTransfer.transfer.getComponentId());
+        var componentLock = components.lockFor(component);
+        componentLock.lock();
+        try {
+            if (pendingTransfer.source == null) {
+                components.remove(component);
+            } else {
+                components.put(component, ComponentTable.state(pendingTransfer.source.index, false));
+            }
+        } finally {
+            componentLock.unlock();
+        }
+        pendingTransfers.release(pendingTransfer);
+    }
+
+    // Takes a queued transfer out of the system, unless it has been admitted already. A queued transfer has not
+    // taken any place yet, so only its queue entry, its wait-for edge and the state of its component are undone.
+    private boolean withdraw(PendingTransfer pendingTransfer) {
+        var source = pendingTransfer.source;
+        var destination = pendingTransfer.destination;
+        destination.lock.lock();
+        try {
+            // everyone admitting a queued transfer takes it out of the queue under this lock
+            if (!unqueue(pendingTransfer)) {
+                return false;
+            }
+            if (source != null) {
+                waitForGraph.removeEdge(source.index, destination.index);
+            }
+        } finally {
+            destination.lock.unlock();
+        }
+        reject(pendingTransfer);
+        return true;
+    }
+
+    // Admits as much of the batch as possible while holding all of its devices: first into free places
+    // and places of leaving components, then along chains and cycles formed by the batch itself.
+    // The rest is queued as if submitted one by one. Returns the transfers admitted by this call.
+    private List<PendingTransfer> planBatch(List<PendingTransfer> batch) {
+        var lockingOrder = new TreeMap<Integer, DeviceState>();
+        for (var pendingTransfer : batch) {
+            if (pendingTransfer.source != null) {
+                lockingOrder.put(pendingTransfer.source.index, pendingTransfer.source);
+            }
+            if (pendingTransfer.destination != null) {
+                lockingOrder.put(pendingTransfer.destination.index, pendingTransfer.destination);
+            }
+        }
+        var admitted = new ArrayList<PendingTransfer>();
+        var isAdmitted = Collections.newSetFromMap(new IdentityHashMap<PendingTransfer, Boolean>());
+        var mayCloseCycle = new ArrayList<PendingTransfer>();
+        // to devices removed after the batch had been accepted
+        var toRemovedDevices = Collections.newSetFromMap(new IdentityHashMap<PendingTransfer, Boolean>());
+        var handedOver = new ArrayList<PendingTransfer>();
+        for (var device : lockingOrder.values()) {
+            device.lock.lock();
+        }
+        try {
+            var waiting = new HashMap<DeviceState, ArrayDeque<PendingTransfer>>(); // by destination
+            for (var pendingTransfer : batch) {
+                var destination = pendingTransfer.destination;
+                if (destination != null && !tryTakeFreePlace(destination)) {
+                    var leavingComponent = destination.leavingQueue.poll();
+                    if (leavingComponent == null && destination.removed) {
+                        toRemovedDevices.add(pendingTransfer);
+                        continue;
+                    }
+                    if (leavingComponent == null) {
+                        waiting.computeIfAbsent(destination, device -> new ArrayDeque<>()).offer(pendingTransfer);
+                        continue;
+                    }
+                    pendingTransfer.whoFreedMe = leavingComponent;
+                }
+                metrics.recordAdmittedDirectly();
+                admitted.add(pendingTransfer);
+                isAdmitted.add(pendingTransfer);
+            }
+            // chains: an admitted transfer hands its place over, unless someone outside the batch waits for it
+            for (int i = 0; i < admitted.size(); i++) {
+                var pendingTransfer = admitted.get(i);
+                var source = pendingTransfer.source;
+                var successors = source == null ? null : waiting.get(source);
+                if (successors == null || successors.isEmpty() || !source.waitingQueue.isEmpty()) {
+                    continue;
+                }
+                var successor = successors.poll();
+                pendingTransfer.retain();
+                pendingTransfer.placeTakenInAdvance = true;
+                successor.whoFreedMe = pendingTransfer;
+                metrics.recordReleasedByChain();
+                admitted.add(successor);
+                isAdmitted.add(successor);
+            }
+            for (var members : findBatchCycles(waiting.values())) {
+                metrics.recordReleasedByCycle(members.size());
+                // every member takes the place of the next one
+                for (int i = 0; i < members.size(); i++) {
+                    var member = members.get(i);
+                    member.whoFreedMe = members.get((i + 1) % members.size());
+                    member.whoFreedMe.retain();
+                    member.placeTakenInAdvance = true;
+                    admitted.add(member);
+                    isAdmitted.add(member);
+                }
+            }
+            for (var pendingTransfer : batch) {
+                if (!isAdmitted.contains(pendingTransfer) && !toRemovedDevices.contains(pendingTransfer) &&
+                    enqueue(pendingTransfer)) {
+                    mayCloseCycle.add(pendingTransfer);
+                }
+            }
+            for (var destination : waiting.keySet()) {
+                handedOver.addAll(handOverFreePlaces(destination));
+            }
+        } finally {
+            for (var device : lockingOrder.values()) {
+                device.lock.unlock();
+            }
+        }
+        admitHandedOver(handedOver);
+        for (var pendingTransfer : toRemovedDevices) {
+            var exception = new DeviceDoesNotExist(pendingTransfer.destination.id);
+            reject(pendingTransfer);
+            pendingTransfer.future.completeExceptionally(exception);
+        }
+        for (var pendingTransfer : mayCloseCycle) {
+            if (releaseCycledTransfers(pendingTransfer)) {
+                admitted.add(pendingTransfer);
+            }
+        }
+        return admitted;
+    }
+
+    // Splits the waiting transfers of a batch into cycles, walking from device to device along transfers
+    // not used yet. A transfer after which the walk gets stuck cannot be on any cycle of the remaining ones.
+    private static List<List<PendingTransfer>> findBatchCycles(Collection<ArrayDeque<PendingTransfer>> waiting) {
+        var leaving = new HashMap<DeviceState, ArrayDeque<PendingTransfer>>(); // by source
+        for (var transfers : waiting) {
+            for (var pendingTransfer : transfers) {
+                // as in chains, places somebody outside the batch waits for go to them first
+                if (pendingTransfer.source != null && pendingTransfer.source.waitingQueue.isEmpty()) {
+                    leaving.computeIfAbsent(pendingTransfer.source, device -> new ArrayDeque<>()).offer(pendingTransfer);
+                }
+            }
+        }
+        var cycles = new ArrayList<List<PendingTransfer>>();
+        var path = new ArrayList<PendingTransfer>();
+        var positions = new HashMap<DeviceState, Integer>(); // source device of every transfer on the path
+        for (var start : new ArrayList<>(leaving.keySet())) {
+            var device = start;
+            while (true) {
+                var candidates = leaving.get(device);
+                var next = candidates == null ? null : candidates.poll();
+                if (next == null) {
+                    if (path.isEmpty()) {
+                        break;
+                    }
+                    // dead end, the last transfer stays waiting
+                    var last = path.remove(path.size() - 1);
+                    positions.remove(last.source);
+                    device = last.source;
+                    continue;
+                }
+                positions.put(device, path.size());
+                path.add(next);
+                device = next.destination;
+                var cycleStart = positions.get(device);
+                if (cycleStart != null) {
+                    var members = path.subList(cycleStart, path.size());
+                    for (var member : members) {
+                        positions.remove(member.source);
+                    }
+                    cycles.add(new ArrayList<>(members));
+                    members.clear();
+                }
+            }
+        }
+        return cycles;
+    }
+
+    // Runs on the executor once the transfer is admitted.
+    // A transfer whose prepare() or perform() throws still goes through all the steps, so that its place
+    // is handed over and its component released as if it succeeded, and only then its future fails.
+    private void prepareAsync(PendingTransfer pendingTransfer) {
+        try {
+            prepare(pendingTransfer);
+        } catch (RuntimeException | Error e) {
+            pendingTransfer.failure = e;
+        }
+        var whoFreedMe = pendingTransfer.whoFreedMe;
+        if (whoFreedMe != null) {
+            pendingTransfer.continuation = () -> performAsync(pendingTransfer);
+            pendingTransfer.preparedWaitAt = TransferEvents.startPreparedWait();
+            if (!whoFreedMe.resumeWhenPrepared(pendingTransfer)) {
+                return;
+            }
+        }
+        performAsync(pendingTransfer);
+    }
+
+    // Runs on the executor once the component we replace is prepared.
+    private void performAsync(PendingTransfer pendingTransfer) {
+        var whoFreedMe = pendingTransfer.whoFreedMe;
+        if (whoFreedMe != null) {
+            TransferEvents.endPreparedWait(pendingTransfer);
+            pendingTransfers.release(whoFreedMe);
+        }
+        // perform() releases the handle, it must not be read afterwards
+        var future = pendingTransfer.future;
+        var failure = pendingTransfer.failure;
+        try {
+            perform(pendingTransfer);
+        } catch (RuntimeException | Error e) {
+            failure = e;
+        }
+        if (failure == null) {
+            future.complete(null);
+        } else {
+            future.completeExceptionally(failure);
+        }
+    }
+
+    // Validates the transfer and marks its component as transferred.
+    private PendingTransfer accept(ComponentTransfer transfer) throws TransferException {
+        var event = TransferEvents.beginValidation();
+        PendingTransfer pendingTransfer;
+        try {
+            pendingTransfer = validate(transfer);
+        } catch (TransferException e) {
+            TransferEvents.endValidation(event, transfer, e);
+            throw e;
+        }
+        TransferEvents.endValidation(event, transfer, null);
+        pendingTransfer.acceptedAt = metrics.startTiming();
+        return pendingTransfer;
+    }
+
+    private PendingTransfer validate(ComponentTransfer transfer) throws TransferException {
         var destinationDeviceId = transfer.getDestinationDeviceId();
         var sourceDeviceId = transfer.getSourceDeviceId();
         var componentId = transfer.getComponentId();
         if (sourceDeviceId == null && destinationDeviceId == null) {
             throw new IllegalTransferType(componentId);
         }
-        if (sourceDeviceId != null && !numOfPlacesLeftOnDevice.containsKey(sourceDeviceId)) {
-            throw new DeviceDoesNotExist(sourceDeviceId);
-        }
-        if (destinationDeviceId != null && !numOfPlacesLeftOnDevice.containsKey(destinationDeviceId)) {
+        var source = sourceDeviceId == null ? null : getDevice(sourceDeviceId);
+        var destination = destinationDeviceId == null ? null : getDevice(destinationDeviceId);
+        if (destination != null && destination.draining) {
             throw new DeviceDoesNotExist(destinationDeviceId);
         }
-        var componentCurrentDevice = componentPlacement.get(componentId);
-        if (sourceDeviceId == null) {
-            if (componentCurrentDevice != null) {
-                if (componentCurrentDevice.isEmpty()) {
-                    throw new ComponentAlreadyExists(componentId);
-                } else {
-                    throw new ComponentAlreadyExists(componentId, componentCurrentDevice.get());
+        int component = Ids.idOf(componentId);
+        var componentLock = components.lockFor(component);
+        componentLock.lock();
+        try {
+            int state = components.get(component);
+            if (source == null) {
+                if (state != ComponentTable.ABSENT) {
+                    int currentDevice = ComponentTable.deviceOf(state);
+                    if (currentDevice == ComponentTable.NO_DEVICE) {
+                        throw new ComponentAlreadyExists(componentId);
+                    } else {
+                        throw new ComponentAlreadyExists(componentId, devices.byIndex[currentDevice].id);
+                    }
+                }
+            } else {
+                if (state == ComponentTable.ABSENT || ComponentTable.deviceOf(state) != source.index) {
+                    throw new ComponentDoesNotExist(componentId, sourceDeviceId);
                 }
             }
-        } else {
-            if (componentCurrentDevice == null || componentCurrentDevice.isEmpty() ||
-                !sourceDeviceId.equals(componentCurrentDevice.get())) {
-                throw new ComponentDoesNotExist(componentId, sourceDeviceId);
+            if (state != ComponentTable.ABSENT && destination != null &&
+                ComponentTable.deviceOf(state) == destination.index) {
+                throw new ComponentDoesNotNeedTransfer(componentId, destinationDeviceId);
             }
+            if (state != ComponentTable.ABSENT && ComponentTable.isTransferred(state)) {
+                throw new ComponentIsBeingOperatedOn(componentId);
+            }
+            // the component stays on its source device until perform() finishes
+            components.put(component, ComponentTable.state(
+                source == null ? ComponentTable.NO_DEVICE : source.index, true
+            ));
+        } finally {
+            componentLock.unlock();
         }
-        if (componentCurrentDevice != null && componentCurrentDevice.get().equals(destinationDeviceId)) {
-            throw new ComponentDoesNotNeedTransfer(componentId, destinationDeviceId);
+        return pendingTransfers.acquire(transfer, source, destination);
+    }
+
+    // Returns true if the transfer is allowed to start, otherwise admit() is called once it is.
+    private boolean tryAdmit(PendingTransfer pendingTransfer) throws DeviceOverloaded, DeviceDoesNotExist {
+        if (pendingTransfer.destination == null) {
+            metrics.recordAdmittedDirectly();
+            return true;
         }
-        var previousValue = transferredComponents.put(componentId, true);
-        if (previousValue != null) {
-            throw new ComponentIsBeingOperatedOn(componentId);
+        var event = TransferEvents.beginReservation();
+        boolean admitted = reservePlace(pendingTransfer);
+        TransferEvents.endReservation(event, pendingTransfer.transfer, !admitted);
+        return admitted;
+    }
+
+    // Same as tryAdmit(), but returns false instead of queueing the transfer.
+    private boolean tryAdmitWithoutQueueing(PendingTransfer pendingTransfer) {
+        var destination = pendingTransfer.destination;
+        if (destination == null) {
+            metrics.recordAdmittedDirectly();
+            return true;
         }
-        if (sourceDeviceId == null) {
-            componentPlacement.put(componentId, Optional.empty());
+        var event = TransferEvents.beginReservation();
+        boolean admitted = takePlace(pendingTransfer);
+        if (admitted) {
+            metrics.recordAdmittedDirectly();
         }
+        TransferEvents.endReservation(event, pendingTransfer.transfer, false);
+        return admitted;
+    }
+
+    private void prepare(PendingTransfer pendingTransfer) {
+        TransferEvents.endQueuedWait(pendingTransfer);
+        metrics.recordQueuedWait(pendingTransfer.priority, pendingTransfer.waitingSince);
+        freePlace(pendingTransfer);
+        metrics.recordTimeToPrepare(pendingTransfer.acceptedAt);
+        var event = TransferEvents.beginPrepare();
         try {
-            int numOfPlacesLeftOnTargetDeviceAfterTransfer = 0;
-            ComponentId whoFreedMe = null;
-            readyToDetectAllowedTransfers.acquire();
-            if (destinationDeviceId != null) {
-                // number of places can be decreased below zero, then it symbolizes number of components waiting
-                numOfPlacesLeftOnTargetDeviceAfterTransfer = numOfPlacesLeftOnDevice.compute(
-                    destinationDeviceId, (__, num) -> --num
-                );
+            pendingTransfer.transfer.prepare();
+        } finally {
+            // even if prepare() fails, whoever has taken our place must not wait forever
+            TransferEvents.end(event, pendingTransfer.transfer);
+            pendingTransfer.preparedAt = metrics.startTiming();
+            signalPrepared(pendingTransfer);
+        }
+    }
+
+    // Called once the component we replace is prepared.
+    private void perform(PendingTransfer pendingTransfer) {
+        var transfer = pendingTransfer.transfer;
+        metrics.recordTimeToPerform(pendingTransfer.preparedAt);
+        boolean performed = false;
+        try {
+            // skipped if prepare() of an asynchronous transfer has failed, which is only completed then
+            if (pendingTransfer.failure == null) {
+                var event = TransferEvents.beginPerform();
+                transfer.perform();
+                TransferEvents.end(event, transfer);
+                performed = true;
             }
-            // there are no places left on device
-            if (numOfPlacesLeftOnTargetDeviceAfterTransfer < 0) {
-                if (!findCycledTransfers(destinationDeviceId, sourceDeviceId, componentId, new HashMap<>())) {
-                    waitingQueuesForDevice.computeIfAbsent(
-                        destinationDeviceId, deviceId -> new LinkedList<>()
-                    ).offer(componentId);
-                    readyToDetectAllowedTransfers.release();
-                    readyToPrepareTransferSync.computeIfAbsent(
-                        componentId, __ -> new Semaphore(0)
-                    ).acquire();
-                    readyToPrepareTransferSync.remove(componentId);
-                } else {
-                    releasingCycledTransfers = true;
-                }
-                whoFreedMe = latestReleasingComponent;
+        } finally {
+            place(pendingTransfer, performed);
+        }
+    }
+
+    // Moves the component of a finished transfer to its destination and drops the handle of the transfer.
+    // A transfer which has failed is not journaled, so after a restart its component is where the last performed
+    // transfer has left it, possibly over the slots of that device, see StorageSystemFactory.
+    private void place(PendingTransfer pendingTransfer, boolean performed) {
+        var transfer = pendingTransfer.transfer;
+        int component = Ids.idOf(transfer.getComponentId());
+        var destination = pendingTransfer.destination;
+        // the next transfer of the component is accepted only after the update, so it is journaled later
+        long journalPosition = journal == null || !performed ? 0 : destination == null ?
+            journal.appendRemoved(component) : journal.appendPlaced(component, Ids.idOf(destination.id));
+        var componentLock = components.lockFor(component);
+        componentLock.lock();
+        try {
+            if (destination == null) {
+                components.remove(component);
             } else {
-                releasingCycledTransfers = false;
-                findChainedTransfers(componentId);
-                if (destinationDeviceId != null) {
-                    var leavingQueue = componentsLeavingFreePlaceOnDevice.get(destinationDeviceId);
-                    // check if some component is leaving the place we're taking or the place is empty
-                    if (leavingQueue != null && numOfPlacesLeftOnTargetDeviceAfterTransfer < leavingQueue.size()) {
-                        whoFreedMe = leavingQueue.poll();
+                components.put(component, ComponentTable.state(destination.index, false));
+            }
+        } finally {
+            componentLock.unlock();
+        }
+        if (journal != null && performed) {
+            journal.awaitDurable(journalPosition);
+        }
+        pendingTransfers.release(pendingTransfer);
+    }
+
+    @Override
+    public StorageSystemMetrics metrics() {
+        return metrics;
+    }
+
+    @Override
+    public void addDevice(DeviceId deviceId, int numOfSlots) {
+        if (deviceId == null) {
+            throw new IllegalArgumentException("deviceId is null");
+        }
+        if (numOfSlots <= 0) {
+            throw new IllegalArgumentException("Device " + deviceId + " has non-positive number of slots");
+        }
+        long journalPosition;
+        devicesLock.lock();
+        try {
+            var currentDevices = devices;
+            if (currentDevices.indexes.containsKey(Ids.idOf(deviceId))) {
+                throw new IllegalArgumentException("Device " + deviceId + " already exists");
+            }
+            // journaled before any transfer may use the device
+            journalPosition = journal == null ? 0 : journal.appendDevice(Ids.idOf(deviceId), numOfSlots);
+            if (numOfFreePlacesChunkDevices * PADDING == freePlacesChunk.length()) {
+                freePlacesChunk = new AtomicIntegerArray(DEVICES_PER_CHUNK * PADDING);
+                numOfFreePlacesChunkDevices = 0;
+            }
+            int freePlacesSlot = numOfFreePlacesChunkDevices++ * PADDING;
+            freePlacesChunk.set(freePlacesSlot, numOfSlots);
+            // indexes of removed devices are never reused, their components may still be leaving them
+            int index = currentDevices.byIndex.length;
+            waitForGraph.addDevice(index, deviceId);
+            var devicesByIndex = Arrays.copyOf(currentDevices.byIndex, index + 1);
+            devicesByIndex[index] = new DeviceState(deviceId, index, numOfSlots, freePlacesChunk, freePlacesSlot);
+            var indexes = indexesOf(currentDevices, null);
+            indexes.put(Ids.idOf(deviceId), index, -1);
+            var accepting = Arrays.copyOf(currentDevices.accepting, currentDevices.accepting.length + 1);
+            accepting[accepting.length - 1] = devicesByIndex[index];
+            devices = new Devices(indexes, devicesByIndex, accepting);
+        } finally {
+            devicesLock.unlock();
+        }
+        if (journal != null) {
+            journal.awaitDurable(journalPosition);
+        }
+    }
+
+    @Override
+    public void resizeDevice(DeviceId deviceId, int numOfSlots) {
+        if (deviceId == null) {
+            throw new IllegalArgumentException("deviceId is null");
+        }
+        if (numOfSlots <= 0) {
+            throw new IllegalArgumentException("Device " + deviceId + " has non-positive number of slots");
+        }
+        var device = getMeasuredDevice(deviceId);
+        var freePlaces = device.freePlaces;
+        int i = device.freePlacesSlot;
+        var admitted = new ArrayList<PendingTransfer>();
+        long journalPosition;
+        device.lock.lock();
+        try {
+            if (device.removed) {
+                throw new IllegalArgumentException("Device " + deviceId + " does not exist");
+            }
+            // journaled under the lock, so that it comes before the removal of the device
+            journalPosition = journal == null ? 0 : journal.appendDevice(Ids.idOf(deviceId), numOfSlots);
+            int numOfNewPlaces = numOfSlots - device.numOfSlots;
+            device.numOfSlots = numOfSlots;
+            if (numOfNewPlaces > 0) {
+                // Places taken over the slots are covered first. Components leaving without the lock may
+                // cover some of them meanwhile, leaving a place free, which they hand over themselves.
+                // Then the longest waiting transfers get the new places, as they would get free ones.
+                int numOfMissingPlaces = Math.min(numOfNewPlaces, Math.max(0, -freePlaces.get(i)));
+                freePlaces.addAndGet(i, numOfMissingPlaces);
+                numOfNewPlaces -= numOfMissingPlaces;
+                PendingTransfer componentWaiting;
+                while (numOfNewPlaces > 0 && (componentWaiting = device.waitingQueue.poll()) != null) {
+                    promoteDeferred(device);
+                    if (componentWaiting.source != null) {
+                        waitForGraph.removeEdge(componentWaiting.source.index, device.index);
                     }
+                    admitted.add(componentWaiting);
+                    numOfNewPlaces--;
                 }
             }
-            boolean releasedCycledTransfers = releasingCycledTransfers;
-            boolean wasFreed = freeWaitingComponent(componentId, sourceDeviceId);
-            transfer.prepare();
-            if (sourceDeviceId != null) {
-                // decide if we have to leave open semaphore behind for other components to take
-                if (releasedCycledTransfers || wasFreed || !componentsLeavingFreePlaceOnDevice.get(sourceDeviceId).remove(componentId)
-                ) {
-                    readyToPerformTransferSync.computeIfAbsent(
-                        componentId, __ -> new Semaphore(0)
-                    ).release();
-                }
-            }
-            if (whoFreedMe != null) {
-                // someone freed this component, so it will have to wait for prepare() before doing perform()
-                readyToPerformTransferSync.computeIfAbsent(
-                    whoFreedMe, __ -> new Semaphore(0)
-                ).acquire();
-                readyToPerformTransferSync.remove(whoFreedMe);
-            }
-            transfer.perform();
-            if (destinationDeviceId == null) {
-                componentPlacement.remove(componentId);
-            } else {
-                componentPlacement.put(componentId, Optional.of(destinationDeviceId));
+            // taken back places are missing until components leave, see freePlace()
+            if (freePlaces.addAndGet(i, numOfNewPlaces) == numOfSlots && device.draining) {
+                device.emptied.signalAll();
+            }
+        } finally {
+            device.lock.unlock();
+        }
+        if (journal != null) {
+            journal.awaitDurable(journalPosition);
+        }
+        if (!admitted.isEmpty()) {
+            TransferEvents.released("RESIZE", admitted.get(0), admitted.size());
+        }
+        for (var pendingTransfer : admitted) {
+            pendingTransfer.admit();
+        }
+    }
+
+    @Override
+    public void drainAndRemoveDevice(DeviceId deviceId) {
+        if (deviceId == null) {
+            throw new IllegalArgumentException("deviceId is null");
+        }
+        var device = getMeasuredDevice(deviceId);
+        devicesLock.lock();
+        try {
+            // a device which has been removed was drained before
+            if (device.draining) {
+                throw new IllegalStateException("Device " + deviceId + " is already being drained");
+            }
+            device.draining = true;
+            var currentDevices = devices;
+            var accepting = Arrays.stream(currentDevices.accepting)
+                .filter(candidate -> candidate != device)
+                .toArray(DeviceState[]::new);
+            devices = new Devices(currentDevices.indexes, currentDevices.byIndex, accepting);
+        } finally {
+            devicesLock.unlock();
+        }
+        long journalPosition;
+        device.lock.lock();
+        try {
+            // Once all places are free and nobody waits, nobody will. A place which got free without the lock
+            // while someone was queueing is handed over before emptied is signalled, see signalPrepared().
+            // Transfers accepted before draining may still take places without the lock, unless they are
+            // all taken away at once, after which such transfers find the device removed.
+            while (!device.waitingQueue.isEmpty() ||
+                   !device.freePlaces.compareAndSet(device.freePlacesSlot, device.numOfSlots, 0)) {
+                device.emptied.await();
             }
-            transferredComponents.remove(componentId);
+            device.removed = true;
+            // Components which have just left the device may be journaled after it, see StorageSystemFactory.
+            // It comes before the device is added again, which is possible only once its id is released below.
+            journalPosition = journal == null ? 0 : journal.appendDevice(Ids.idOf(deviceId), 0);
         } catch (InterruptedException e) {
             throw new RuntimeException("panic: unexpected thread interruption");
+        } finally {
+            device.lock.unlock();
+        }
+        devicesLock.lock();
+        try {
+            var currentDevices = devices;
+            devices = new Devices(indexesOf(currentDevices, device), currentDevices.byIndex,
+                                  currentDevices.accepting);
+        } finally {
+            devicesLock.unlock();
+        }
+        if (journal != null) {
+            journal.awaitDurable(journalPosition);
+        }
+    }
+
+    // Indexes of the devices, rebuilt as they may be read concurrently, without the removed device.
+    private static IntIntHashMap indexesOf(Devices devices, DeviceState removedDevice) {
+        var indexes = new IntIntHashMap(devices.indexes.size() + 1);
+        for (var device : devices.byIndex) {
+            int id = Ids.idOf(device.id);
+            if (device != removedDevice && devices.indexes.get(id, -1) == device.index) {
+                indexes.put(id, device.index, -1);
+            }
+        }
+        return indexes;
+    }
+
+    int freePlaces(DeviceId deviceId) {
+        var device = getMeasuredDevice(deviceId);
+        return device.freePlaces.get(device.freePlacesSlot);
+    }
+
+    int waitingTransfers(DeviceId deviceId) {
+        var device = getMeasuredDevice(deviceId);
+        device.lock.lock();
+        try {
+            return device.waitingQueue.size();
+        } finally {
+            device.lock.unlock();
+        }
+    }
+
+    int deferredTransfers(DeviceId deviceId) {
+        var device = getMeasuredDevice(deviceId);
+        device.lock.lock();
+        try {
+            return device.deferredQueue.size();
+        } finally {
+            device.lock.unlock();
         }
     }
 
-    // Free another component with inheriting critical section.
-    private boolean freeWaitingComponent(ComponentId componentId, DeviceId sourceDeviceId) {
-        if (sourceDeviceId != null) {
-            numOfPlacesLeftOnDevice.compute(sourceDeviceId, (__, num) -> ++num);
+    private DeviceState getMeasuredDevice(DeviceId deviceId) {
+        var currentDevices = devices;
+        int deviceIndex = currentDevices.indexes.get(Ids.idOf(deviceId), -1);
+        if (deviceIndex == -1) {
+            throw new IllegalArgumentException("Device " + deviceId + " does not exist");
         }
-        var componentWaitingForMe = whoWantsMyPlace.get(componentId);
-        if (componentWaitingForMe == null) {
-            if (sourceDeviceId != null && !releasingCycledTransfers) {
-                componentsLeavingFreePlaceOnDevice.computeIfAbsent(
-                    sourceDeviceId, __ -> new ConcurrentLinkedDeque<>()
-                ).offer(componentId);
+        return currentDevices.byIndex[deviceIndex];
+    }
+
+    private DeviceState getDevice(DeviceId deviceId) throws DeviceDoesNotExist {
+        var currentDevices = devices;
+        int deviceIndex = currentDevices.indexes.get(Ids.idOf(deviceId), -1);
+        if (deviceIndex == -1) {
+            throw new DeviceDoesNotExist(deviceId);
+        }
+        return currentDevices.byIndex[deviceIndex];
+    }
+
+    private static boolean tryTakeFreePlace(DeviceState device) {
+        var freePlaces = device.freePlaces;
+        int i = device.freePlacesSlot;
+        int numOfFreePlaces;
+        while ((numOfFreePlaces = freePlaces.get(i)) > 0) {
+            if (freePlaces.compareAndSet(i, numOfFreePlaces, numOfFreePlaces - 1)) {
+                return true;
             }
-            readyToDetectAllowedTransfers.release();
-            return false;
-        } else {
-            whoWantsMyPlace.remove(componentId);
-            var waitingQueue = waitingQueuesForDevice.get(sourceDeviceId);
-            waitingQueue.remove(componentWaitingForMe);
-            if (waitingQueue.isEmpty()) {
-                waitingQueuesForDevice.remove(sourceDeviceId);
-            }
-            latestReleasingComponent = componentId;
-            readyToPrepareTransferSync.computeIfAbsent(
-                componentWaitingForMe, __ -> new Semaphore(0)
-            ).release();
-            return true;
         }
+        return false;
     }
 
-    private boolean findCycledTransfers(
-        DeviceId start, DeviceId currentDevice, ComponentId currentComponent, Map<DeviceId, Boolean> visited
-    ) {
-        visited.put(currentDevice, true);
-        var waitingQueue = waitingQueuesForDevice.get(currentDevice);
-        if (waitingQueue == null || waitingQueue.isEmpty()) {
-            return false;
-        }
-        DeviceId sourceDeviceId;
-        for (ComponentId waitingComponent : waitingQueue) {
-            var optionalSourceDeviceId = componentPlacement.get(waitingComponent);
-            if (optionalSourceDeviceId.isEmpty()) {
-                continue;
-            }
-            sourceDeviceId = optionalSourceDeviceId.get();
-            if (sourceDeviceId.equals(start)) {
-                whoWantsMyPlace.put(currentComponent, waitingComponent);
-                latestReleasingComponent = waitingComponent;
+    // Returns true if the transfer is allowed to start, with whoFreedMe set. Otherwise the transfer
+    // is queued and admit() is called once it is allowed.
+    private boolean reservePlace(PendingTransfer pendingTransfer) throws DeviceOverloaded, DeviceDoesNotExist {
+        var source = pendingTransfer.source;
+        var destination = pendingTransfer.destination;
+        if (takePlace(pendingTransfer)) {
+            metrics.recordAdmittedDirectly();
+            return true;
+        }
+        boolean mayCloseCycle = false;
+        boolean overloaded = false;
+        boolean removed = false;
+        List<PendingTransfer> handedOver = List.of();
+        destination.lock.lock();
+        try {
+            if (takePlace(pendingTransfer)) {
+                metrics.recordAdmittedDirectly();
                 return true;
             }
-            boolean isDeviceVisited = visited.getOrDefault(sourceDeviceId, false);
-            if (!isDeviceVisited) {
-                whoWantsMyPlace.put(currentComponent, waitingComponent);
-                if (findCycledTransfers(start, sourceDeviceId, waitingComponent, visited)) {
-                    return true;
+            if (destination.removed) {
+                // removed after the transfer had been accepted, nobody would ever free a place
+                removed = true;
+            } else if (admissionControl.policy == AdmissionControl.Policy.FAIL && isFull(destination)) {
+                // only a transfer which may close a cycle is queued over the cap
+                mayCloseCycle = source != null && waitForGraph.addEdge(source.index, destination.index);
+                if (mayCloseCycle) {
+                    pendingTransfer.queuedAt = TransferEvents.startQueuedWait();
+                    destination.waitingQueue.offer(pendingTransfer);
+                } else {
+                    if (source != null) {
+                        waitForGraph.removeEdge(source.index, destination.index);
+                    }
+                    overloaded = true;
                 }
-                whoWantsMyPlace.remove(currentComponent);
+            } else {
+                mayCloseCycle = enqueue(pendingTransfer);
+            }
+            if (!removed && !overloaded) {
+                handedOver = handOverFreePlaces(destination);
             }
+        } finally {
+            destination.lock.unlock();
+        }
+        admitHandedOver(handedOver);
+        if (removed) {
+            reject(pendingTransfer);
+            throw new DeviceDoesNotExist(destination.id);
+        }
+        if (overloaded) {
+            reject(pendingTransfer);
+            metrics.recordOverloaded();
+            throw new DeviceOverloaded(destination.id);
+        }
+        return mayCloseCycle && releaseCycledTransfers(pendingTransfer);
+    }
+
+    // Queues the transfer for a place on its destination, behind the deferred ones if too many wait already.
+    // Called with the destination locked. Returns true if its wait-for edge may close a cycle.
+    private boolean enqueue(PendingTransfer pendingTransfer) {
+        var destination = pendingTransfer.destination;
+        pendingTransfer.queuedAt = TransferEvents.startQueuedWait();
+        if (isFull(destination)) {
+            if (destination.deferredQueue.isEmpty()) {
+                admissionControl.overloaded(destination.id);
+            }
+            destination.deferredQueue.offer(pendingTransfer);
+            metrics.recordDeferred();
+        } else {
+            destination.waitingQueue.offer(pendingTransfer);
+        }
+        var source = pendingTransfer.source;
+        return source != null && waitForGraph.addEdge(source.index, destination.index);
+    }
+
+    // Takes the transfer out of the queues of its destination, called with the destination locked.
+    // Returns false if it is not queued there.
+    private boolean unqueue(PendingTransfer pendingTransfer) {
+        var destination = pendingTransfer.destination;
+        if (destination.waitingQueue.remove(pendingTransfer)) {
+            promoteDeferred(destination);
+            return true;
+        }
+        if (destination.deferredQueue.remove(pendingTransfer)) {
+            if (destination.deferredQueue.isEmpty()) {
+                admissionControl.relieved(destination.id);
+            }
+            return true;
         }
         return false;
     }
 
-    private void findChainedTransfers(ComponentId start) {
-        Optional<DeviceId> sourceDeviceOptional;
-        DeviceId sourceDevice;
-        Deque<ComponentId> waitingQueue;
-        ComponentId currentComponent = start;
-        ComponentId waitingComponent;
-        Map<DeviceId, Boolean> visitedDevices = new HashMap<>();
-        do {
-            sourceDeviceOptional = componentPlacement.get(currentComponent);
-            if (sourceDeviceOptional.isEmpty()) {
-                return;
+    // Lets deferred transfers join the waiting ones, called with the device locked once some have left.
+    // Deferred transfers are on the wait-for graph already, so nothing changes there.
+    private void promoteDeferred(DeviceState device) {
+        if (device.deferredQueue.isEmpty()) {
+            return;
+        }
+        while (!isFull(device) && !device.deferredQueue.isEmpty()) {
+            device.waitingQueue.requeue(device.deferredQueue.poll());
+        }
+        if (device.deferredQueue.isEmpty()) {
+            admissionControl.relieved(device.id);
+        }
+    }
+
+    private boolean isFull(DeviceState device) {
+        return device.waitingQueue.size() >= admissionControl.maxWaitersPerDevice;
+    }
+
+    // Takes a free place on the destination device or the place of some component which is leaving,
+    // setting whoFreedMe then, without the lock of the destination device.
+    private boolean takePlace(PendingTransfer pendingTransfer) {
+        var destination = pendingTransfer.destination;
+        if (tryTakeFreePlace(destination)) {
+            return true;
+        }
+        // the leaving component has retained its handle for us, see leave()
+        var leavingComponent = destination.leavingQueue.poll();
+        if (leavingComponent != null) {
+            pendingTransfer.whoFreedMe = leavingComponent;
+            return true;
+        }
+        return false;
+    }
+
+    // Hand our place on the source device over to the longest waiting component or leave it free.
+    private void freePlace(PendingTransfer pendingTransfer) {
+        var source = pendingTransfer.source;
+        if (source == null || pendingTransfer.placeTakenInAdvance) {
+            return;
+        }
+        if (source.waitingQueue.isEmpty() && source.freePlaces.get(source.freePlacesSlot) >= 0) {
+            leave(pendingTransfer);
+            if (!source.waitingQueue.isEmpty()) {
+                // Someone has queued after looking for a place and before we left, it takes ours now,
+                // not after our prepare(). Whoever queues after we left looks for us, see reservePlace().
+                List<PendingTransfer> handedOver;
+                source.lock.lock();
+                try {
+                    handedOver = handOverFreePlaces(source);
+                } finally {
+                    source.lock.unlock();
+                }
+                admitHandedOver(handedOver);
             }
-            sourceDevice = sourceDeviceOptional.get();
-            if (visitedDevices.getOrDefault(sourceDevice, false)) {
+            return;
+        }
+        PendingTransfer componentWaitingForMe;
+        source.lock.lock();
+        try {
+            // The device holds more components than it has slots, as perform() of a component taking
+            // the place of another one has been journaled and that of the other one has not,
+            // or as the device has shrunk. Our place only brings it back within its slots then,
+            // nobody waits for our prepare().
+            if (source.freePlaces.get(source.freePlacesSlot) < 0) {
+                source.freePlaces.incrementAndGet(source.freePlacesSlot);
                 return;
             }
-            visitedDevices.put(sourceDevice, true);
-            waitingQueue = waitingQueuesForDevice.get(sourceDevice);
-            if (waitingQueue == null || waitingQueue.isEmpty()) {
-                return;
+            componentWaitingForMe = source.waitingQueue.poll();
+            if (componentWaitingForMe == null) {
+                leave(pendingTransfer);
+            } else {
+                promoteDeferred(source);
+                pendingTransfer.retain();
+                componentWaitingForMe.whoFreedMe = pendingTransfer;
+                if (componentWaitingForMe.source != null) {
+                    waitForGraph.removeEdge(componentWaitingForMe.source.index, source.index);
+                }
+            }
+        } finally {
+            source.lock.unlock();
+        }
+        if (componentWaitingForMe != null) {
+            metrics.recordReleasedByChain();
+            TransferEvents.released("CHAIN", componentWaitingForMe, 1);
+            componentWaitingForMe.admit();
+        }
+    }
+
+    // Admits the longest waiting transfers into free places of the device and places of leaving components,
+    // called with the device locked. Needed after a place gets free without the lock, and after queueing,
+    // as the place may have got free or left between looking for it and queueing.
+    private List<PendingTransfer> handOverFreePlaces(DeviceState device) {
+        List<PendingTransfer> handedOver = List.of();
+        while (!device.waitingQueue.isEmpty()) {
+            PendingTransfer leavingComponent = null;
+            if (!tryTakeFreePlace(device) && (leavingComponent = device.leavingQueue.poll()) == null) {
+                break;
+            }
+            var componentWaiting = device.waitingQueue.poll();
+            componentWaiting.whoFreedMe = leavingComponent;
+            promoteDeferred(device);
+            if (componentWaiting.source != null) {
+                waitForGraph.removeEdge(componentWaiting.source.index, device.index);
             }
-            waitingComponent = waitingQueue.poll();
-            whoWantsMyPlace.put(currentComponent, waitingComponent);
-            currentComponent = waitingComponent;
-        } while(true);
+            if (handedOver.isEmpty()) {
+                handedOver = new ArrayList<>();
+            }
+            handedOver.add(componentWaiting);
+        }
+        return handedOver;
+    }
+
+    private void admitHandedOver(List<PendingTransfer> handedOver) {
+        if (handedOver.isEmpty()) {
+            return;
+        }
+        TransferEvents.released("CHAIN", handedOver.get(0), handedOver.size());
+        for (int i = 0; i < handedOver.size(); i++) {
+            metrics.recordReleasedByChain();
+        }
+        admitAll(handedOver);
+    }
+
+    // Admits every transfer, even if waking one of them fails as its executor rejects the continuation.
+    private static void admitAll(List<PendingTransfer> admitted) {
+        RuntimeException failure = null;
+        for (var pendingTransfer : admitted) {
+            try {
+                pendingTransfer.admit();
+            } catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // Lets a component arriving at the source device take our place, before we are prepared.
+    private static void leave(PendingTransfer pendingTransfer) {
+        pendingTransfer.retain(); // for whoever takes the place, so that it is never dropped in between
+        pendingTransfer.source.leavingQueue.offer(pendingTransfer);
+    }
+
+    // Let the component taking our place perform, unless nobody has claimed the place yet.
+    private void signalPrepared(PendingTransfer pendingTransfer) {
+        var source = pendingTransfer.source;
+        if (source == null) {
+            return;
+        }
+        if (!source.leavingQueue.remove(pendingTransfer)) {
+            pendingTransfer.markPrepared();
+            return;
+        }
+        pendingTransfers.release(pendingTransfer); // the reference kept for the component taking our place
+        source.freePlaces.incrementAndGet(source.freePlacesSlot);
+        if (source.waitingQueue.isEmpty() && !source.draining) {
+            return;
+        }
+        // someone has queued since we left, possibly after looking for the free place
+        List<PendingTransfer> handedOver;
+        source.lock.lock();
+        try {
+            handedOver = handOverFreePlaces(source);
+            if (source.draining && source.waitingQueue.isEmpty() &&
+                source.freePlaces.get(source.freePlacesSlot) == source.numOfSlots) {
+                source.emptied.signalAll();
+            }
+        } finally {
+            source.lock.unlock();
+        }
+        admitHandedOver(handedOver);
+    }
+
+    // Called when queueing the transfer may have closed a cycle.
+    // Returns true if the transfer was admitted as a member of a cycle.
+    private boolean releaseCycledTransfers(PendingTransfer pendingTransfer) {
+        var source = pendingTransfer.source;
+        var destination = pendingTransfer.destination;
+        int[] cycle; // devices from the destination back to the source
+        while ((cycle = waitForGraph.checkEdge(source.index, destination.index)) != null) {
+            var cycleDevices = new ArrayList<DeviceState>();
+            var devicesByIndex = devices.byIndex;
+            for (int deviceIndex : cycle) {
+                cycleDevices.add(devicesByIndex[deviceIndex]);
+            }
+            var lockingOrder = new ArrayList<>(cycleDevices);
+            lockingOrder.sort(Comparator.comparingInt(device -> device.index));
+            List<PendingTransfer> members;
+            for (var device : lockingOrder) {
+                device.lock.lock();
+            }
+            try {
+                if (!destination.waitingQueue.contains(pendingTransfer) &&
+                    !destination.deferredQueue.contains(pendingTransfer)) {
+                    // someone has freed a place for us in the meantime
+                    return false;
+                }
+                members = findCycledTransfers(pendingTransfer, cycleDevices);
+                if (members != null) {
+                    // every member takes the place of the next one
+                    for (int i = 0; i < members.size(); i++) {
+                        var member = members.get(i);
+                        unqueue(member);
+                        waitForGraph.removeEdge(member.source.index, member.destination.index);
+                        member.whoFreedMe = members.get((i + 1) % members.size());
+                        member.whoFreedMe.retain();
+                        member.placeTakenInAdvance = true;
+                    }
+                    metrics.recordReleasedByCycle(members.size());
+                }
+            } finally {
+                for (var device : lockingOrder) {
+                    device.lock.unlock();
+                }
+            }
+            if (members != null) {
+                // admitted after unlocking, as waking an asynchronous member may run it on the executor
+                TransferEvents.released("CYCLE", pendingTransfer, members.size());
+                admitAll(members.subList(1, members.size()));
+                return true;
+            }
+            // some component on the path has been released in the meantime, check again
+        }
+        return false;
+    }
+
+    // For every edge of the cycle pick the component which would be served first, called with all cycle devices locked.
+    private static List<PendingTransfer> findCycledTransfers(
+        PendingTransfer pendingTransfer, List<DeviceState> cycleDevices
+    ) {
+        var members = new ArrayList<PendingTransfer>();
+        members.add(pendingTransfer);
+        for (int i = 0; i + 1 < cycleDevices.size(); i++) {
+            var currentDevice = cycleDevices.get(i);
+            var nextDevice = cycleDevices.get(i + 1);
+            var member = nextDevice.waitingQueue.peekFrom(currentDevice);
+            if (member == null) {
+                member = nextDevice.deferredQueue.peekFrom(currentDevice);
+            }
+            if (member == null) {
+                return null;
+            }
+            members.add(member);
+        }
+        return members;
     }
 }
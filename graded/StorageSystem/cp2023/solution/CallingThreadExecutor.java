@@ -0,0 +1,38 @@
+package cp2023.solution;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+// Runs the submitted tasks in the thread which created it, so that synchronous calls can use
+// the asynchronous machinery while prepare() and perform() still run in the calling thread.
+final class CallingThreadExecutor implements Executor {
+    private final Thread caller;
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+
+    CallingThreadExecutor() {
+        this.caller = Thread.currentThread();
+        this.tasks = new ConcurrentLinkedQueue<>();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        tasks.offer(task);
+        LockSupport.unpark(caller);
+    }
+
+    void runUntilDone(CompletableFuture<?> future) {
+        while (!future.isDone()) {
+            var task = tasks.poll();
+            if (task != null) {
+                task.run();
+            } else {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new RuntimeException("panic: unexpected thread interruption");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package cp2023.solution;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+// Placement and transfer state of every component, packed into a single int and kept in primitive
+// open addressing maps striped by component id. Callers hold lockFor(componentId) around every access,
+// which also makes checking and changing the state of a component atomic.
+final class ComponentTable {
+    static final int ABSENT = -1;
+    static final int NO_DEVICE = -1; // the component is being added
+    private static final int TRANSFERRED = 1; // used when checking if the component is operated on
+
+    private final IntIntHashMap[] segments;
+    private final ReentrantLock[] locks;
+    private final int segmentShift;
+
+    ComponentTable(int expectedSize) {
+        int numOfSegments = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 4 - 1)) << 1;
+        this.segments = new IntIntHashMap[numOfSegments];
+        this.locks = new ReentrantLock[numOfSegments];
+        this.segmentShift = Integer.numberOfLeadingZeros(numOfSegments) + 1;
+        for (int i = 0; i < numOfSegments; i++) {
+            segments[i] = new IntIntHashMap(expectedSize / numOfSegments);
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    static int state(int deviceIndex, boolean transferred) {
+        return (deviceIndex + 1) << 1 | (transferred ? TRANSFERRED : 0);
+    }
+
+    static int deviceOf(int state) {
+        return (state >>> 1) - 1;
+    }
+
+    static boolean isTransferred(int state) {
+        return (state & TRANSFERRED) != 0;
+    }
+
+    ReentrantLock lockFor(int componentId) {
+        return locks[segmentOf(componentId)];
+    }
+
+    // Returns ABSENT if the component is not in the system.
+    int get(int componentId) {
+        return segments[segmentOf(componentId)].get(componentId, ABSENT);
+    }
+
+    void put(int componentId, int state) {
+        segments[segmentOf(componentId)].put(componentId, state, ABSENT);
+    }
+
+    // Puts the first count components, which all have to be in the given segment, under the lock of the segment.
+    // Returns the index of the first one which was already in the table, or -1.
+    int putAll(int segment, int[] componentIds, int[] states, int count) {
+        var map = segments[segment];
+        int firstDuplicate = -1;
+        locks[segment].lock();
+        try {
+            for (int i = 0; i < count; i++) {
+                if (map.put(componentIds[i], states[i], ABSENT) != ABSENT && firstDuplicate == -1) {
+                    firstDuplicate = i;
+                }
+            }
+        } finally {
+            locks[segment].unlock();
+        }
+        return firstDuplicate;
+    }
+
+    int numOfSegments() {
+        return segments.length;
+    }
+
+    void remove(int componentId) {
+        segments[segmentOf(componentId)].remove(componentId, ABSENT);
+    }
+
+    // Segments are chosen by the topmost bits of the hash, the maps within them use the lower ones.
+    // Otherwise all keys of a segment would share some bits of their slots once a map grows past 2^16 slots,
+    // crowding them into a fraction of the table.
+    int segmentOf(int componentId) {
+        return (componentId * 0x9E3779B9) >>> segmentShift;
+    }
+}
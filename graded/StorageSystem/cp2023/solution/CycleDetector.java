@@ -0,0 +1,19 @@
+package cp2023.solution;
+
+import cp2023.base.DeviceId;
+
+// Edges between devices of queued transfers, see WaitForGraph. Every method locks what it needs by itself.
+interface CycleDetector {
+
+    // Makes room for a device with the next index, before any of its edges is added.
+    void addDevice(int device, DeviceId deviceId);
+
+    // Returns true if the new edge may close a cycle, so checkEdge has to be called.
+    boolean addEdge(int source, int destination);
+
+    void removeEdge(int source, int destination);
+
+    // Returns devices on the path from destination back to source if the edge closes a cycle,
+    // otherwise null, also when the edge is gone.
+    int[] checkEdge(int source, int destination);
+}
@@ -0,0 +1,21 @@
+package cp2023.solution;
+
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+
+// Thrown under AdmissionControl.Policy.FAIL, when too many transfers wait for the device.
+public final class DeviceOverloaded extends TransferException {
+
+    private static final long serialVersionUID = 3870911263402471552L;
+
+    private final DeviceId devId;
+
+    public DeviceOverloaded(DeviceId devId) {
+        super("device " + devId.toString() + " is overloaded");
+        this.devId = devId;
+    }
+
+    public DeviceId getDeviceId() {
+        return this.devId;
+    }
+}
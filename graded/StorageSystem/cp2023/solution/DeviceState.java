@@ -0,0 +1,46 @@
+package cp2023.solution;
+
+import cp2023.base.DeviceId;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Queues of a single device, guarded by its own lock. Its free places are counted separately,
+// in a padded slot of an array shared with other devices, so that they can be taken without the lock.
+final class DeviceState {
+    final DeviceId id;
+    final int index; // dense index assigned by StorageSystemFactory or when added, never reused
+    final ReentrantLock lock;
+    final WaitingQueue waitingQueue; // transfers waiting for a place on this device
+    final WaitingQueue deferredQueue; // over the cap of admission control, join the waiting ones as they leave
+    // Left without handing the place over, prepare() may still be running. Not guarded by the lock:
+    // whoever removes a transfer from it either takes its place or, the transfer itself, frees it.
+    final Queue<PendingTransfer> leavingQueue;
+    // Places nobody is leaving or waiting for, taken with a single CAS. They increase without the device lock,
+    // so whoever increases them while someone waits, and a transfer which has just queued, look again under
+    // the lock for a transfer waiting while a place is free, see handOverFreePlaces().
+    // Negative when the device holds more components than slots: after recovering from a journal which ended
+    // in the middle of an exchange, or after shrinking the device, see freePlace().
+    final AtomicIntegerArray freePlaces;
+    final int freePlacesSlot;
+    int numOfSlots; // changed under the lock
+    volatile boolean draining; // no transfers to the device are accepted
+    boolean removed; // nobody can take a place on the device anymore
+    final Condition emptied; // signalled while draining, when all places get free
+
+    DeviceState(DeviceId id, int index, int numOfSlots, AtomicIntegerArray freePlaces, int freePlacesSlot) {
+        this.id = id;
+        this.index = index;
+        this.lock = new ReentrantLock();
+        this.waitingQueue = new WaitingQueue();
+        this.deferredQueue = new WaitingQueue();
+        this.leavingQueue = new ConcurrentLinkedQueue<>();
+        this.freePlaces = freePlaces;
+        this.freePlacesSlot = freePlacesSlot;
+        this.numOfSlots = numOfSlots;
+        this.emptied = lock.newCondition();
+    }
+}
@@ -0,0 +1,561 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// One node of a storage system spread over nodes which own some of the devices each, see
+// StorageSystemFactory.newNode(). Nodes exchange messages only through the transport.
+//
+// The protocol follows CP2023StorageSystem, with every piece of state kept by a single node:
+// a device by its owner, which reserves its places, hands them over along chains and queues transfers,
+// the state of a component by node (component id mod number of nodes), and the wait-for graph by node 0.
+// A transfer is driven by the node executing it, its home, which admits it and tells the transfer
+// taking its place that it has been prepared. Transfers are named by references: their home and a number.
+//
+// Releasing a cycle locks its devices in the order of their indexes, as locally, so a device lock is
+// held across messages, which the owner may handle in different threads. Device locks are therefore
+// semaphores, not owned by threads. Graph messages are sent with devices locked and never the other way.
+public final class DistributedStorageSystem implements StorageSystem {
+    private static final int GRAPH_NODE = 0;
+    private static final long NONE = -1; // no transfer
+    private static final long PREPARED = -2; // in place of the transfer waiting for our prepare()
+    private static final int REF_NODE_SHIFT = 40;
+
+    // kinds of messages, the first long of every message, followed by its arguments
+    private static final int ACCEPT = 0; // component, source, destination -> result, device
+    private static final int FINISH = 1; // component, destination
+    private static final int RESERVE = 2; // device, transfer, source -> admitted, whoFreedMe or mayCloseCycle
+    private static final int FREE = 3; // device, transfer
+    private static final int SIGNAL_PREPARED = 4; // device, transfer -> place taken
+    private static final int LOCK = 5; // device
+    private static final int UNLOCK = 6; // device
+    private static final int CONTAINS = 7; // device, transfer -> queued
+    private static final int PEEK_FROM = 8; // device, source -> transfer
+    private static final int REMOVE = 9; // device, transfer
+    private static final int ADD_EDGE = 10; // source, destination -> mayCloseCycle
+    private static final int REMOVE_EDGE = 11; // source, destination
+    private static final int CHECK_EDGE = 12; // source, destination -> cycle, empty if none
+    private static final int ADMIT = 13; // transfer, whoFreedMe, placeTakenInAdvance
+    private static final int AWAIT_PREPARED = 14; // transfer, waiter -> prepared
+    private static final int RESUME_PREPARED = 15; // waiter
+
+    // results of ACCEPT
+    private static final int ACCEPTED = 0;
+    private static final int ALREADY_EXISTS = 1;
+    private static final int DOES_NOT_EXIST = 2;
+    private static final int DOES_NOT_NEED_TRANSFER = 3;
+    private static final int BEING_OPERATED_ON = 4;
+
+    private static final long[] EMPTY = new long[0];
+
+    private final int node;
+    private final int numOfNodes;
+    private final DeviceId[] deviceIds; // by index, the same on every node
+    private final IntIntHashMap deviceIndexes; // read-only after construction
+    private final int[] deviceNodes; // owner of every device
+    private final NodeDevice[] devices; // null for devices of other nodes
+    private final ComponentTable components; // only components kept by this node
+    private final WaitForGraph waitForGraph; // null except on GRAPH_NODE
+    private final ConcurrentHashMap<Long, HomeTransfer> homeTransfers; // executed here, until perform() finishes
+    private final AtomicLong nextTransferNumber;
+    private final Transport transport;
+
+    private static final class NodeDevice {
+        final Semaphore lock;
+        int numOfFreePlaces; // nobody is leaving or waiting for them
+        final Waiters waitingQueue;
+        // left without handing the place over, prepare() may still be running, in the order they left
+        final LinkedHashSet<Long> leavingQueue;
+
+        NodeDevice(int numOfFreePlaces) {
+            this.lock = new Semaphore(1);
+            this.numOfFreePlaces = numOfFreePlaces;
+            this.waitingQueue = new Waiters();
+            this.leavingQueue = new LinkedHashSet<>();
+        }
+    }
+
+    private static final class Waiter {
+        final long transfer;
+        final int source; // -1 when adding a component
+        // links of the lists of Waiters
+        Waiter previous;
+        Waiter next;
+        Waiter previousFromSource;
+        Waiter nextFromSource;
+
+        Waiter(long transfer, int source) {
+            this.transfer = transfer;
+            this.source = source;
+        }
+    }
+
+    // Transfers waiting for a place on a device, in FIFO order. As in WaitingQueue, they are linked into
+    // a list of all of them and a list of those from the same source, and also indexed by reference,
+    // so that messages naming a transfer or a source find it in constant time. Guarded by the device lock.
+    private static final class Waiters {
+        private final HashMap<Long, Waiter> byTransfer;
+        private final HashMap<Integer, Waiter> firstFromSource; // only sources with waiting transfers
+        private final HashMap<Integer, Waiter> lastFromSource;
+        private Waiter first;
+        private Waiter last;
+
+        Waiters() {
+            this.byTransfer = new HashMap<>();
+            this.firstFromSource = new HashMap<>();
+            this.lastFromSource = new HashMap<>();
+        }
+
+        void offer(Waiter waiter) {
+            byTransfer.put(waiter.transfer, waiter);
+            waiter.previous = last;
+            if (last == null) {
+                first = waiter;
+            } else {
+                last.next = waiter;
+            }
+            last = waiter;
+            if (waiter.source != -1) {
+                var sourceLast = lastFromSource.put(waiter.source, waiter);
+                waiter.previousFromSource = sourceLast;
+                if (sourceLast == null) {
+                    firstFromSource.put(waiter.source, waiter);
+                } else {
+                    sourceLast.nextFromSource = waiter;
+                }
+            }
+        }
+
+        // Returns null if nobody waits.
+        Waiter poll() {
+            var waiter = first;
+            if (waiter != null) {
+                remove(waiter);
+            }
+            return waiter;
+        }
+
+        // Returns null if the transfer does not wait.
+        Waiter find(long transfer) {
+            return byTransfer.get(transfer);
+        }
+
+        // Returns NONE if no transfer from the source waits.
+        long peekFrom(int source) {
+            var waiter = firstFromSource.get(source);
+            return waiter == null ? NONE : waiter.transfer;
+        }
+
+        void remove(Waiter waiter) {
+            byTransfer.remove(waiter.transfer);
+            if (waiter.previous == null) {
+                first = waiter.next;
+            } else {
+                waiter.previous.next = waiter.next;
+            }
+            if (waiter.next == null) {
+                last = waiter.previous;
+            } else {
+                waiter.next.previous = waiter.previous;
+            }
+            if (waiter.source != -1) {
+                if (waiter.previousFromSource == null) {
+                    if (waiter.nextFromSource == null) {
+                        firstFromSource.remove(waiter.source);
+                    } else {
+                        firstFromSource.put(waiter.source, waiter.nextFromSource);
+                    }
+                } else {
+                    waiter.previousFromSource.nextFromSource = waiter.nextFromSource;
+                }
+                if (waiter.nextFromSource == null) {
+                    if (waiter.previousFromSource == null) {
+                        lastFromSource.remove(waiter.source);
+                    } else {
+                        lastFromSource.put(waiter.source, waiter.previousFromSource);
+                    }
+                } else {
+                    waiter.nextFromSource.previousFromSource = waiter.previousFromSource;
+                }
+            }
+        }
+    }
+
+    private static final class HomeTransfer {
+        final Thread owner;
+        long whoFreedMe; // set before admitted or by the transfer's own thread
+        boolean placeTakenInAdvance;
+        volatile boolean admitted;
+        volatile boolean sawPrepared; // whoFreedMe has been prepared
+        final AtomicLong preparedWaiter; // transfer taking our place which waits for our prepare(), or PREPARED
+
+        HomeTransfer() {
+            this.owner = Thread.currentThread();
+            this.whoFreedMe = NONE;
+            this.preparedWaiter = new AtomicLong(NONE);
+        }
+    }
+
+    // Devices are identified by their indexes in deviceIds, see StorageSystemFactory.
+    DistributedStorageSystem(int node, int numOfNodes, DeviceId[] deviceIds, IntIntHashMap deviceIndexes,
+                             int[] deviceNodes, int[] numOfFreePlaces, ComponentTable components,
+                             Transport transport) {
+        this.node = node;
+        this.numOfNodes = numOfNodes;
+        this.deviceIds = deviceIds;
+        this.deviceIndexes = deviceIndexes;
+        this.deviceNodes = deviceNodes;
+        this.devices = new NodeDevice[deviceIds.length];
+        for (int device = 0; device < deviceIds.length; device++) {
+            if (deviceNodes[device] == node) {
+                devices[device] = new NodeDevice(numOfFreePlaces[device]);
+            }
+        }
+        this.components = components;
+        this.waitForGraph = node == GRAPH_NODE ? new WaitForGraph(deviceIds.length) : null;
+        this.homeTransfers = new ConcurrentHashMap<>();
+        this.nextTransferNumber = new AtomicLong();
+        this.transport = transport;
+        transport.bind(node, this::handle);
+    }
+
+    public int node() {
+        return node;
+    }
+
+    public boolean ownsDevice(DeviceId deviceId) {
+        int device = deviceIndexes.get(Ids.idOf(deviceId), -1);
+        return device != -1 && deviceNodes[device] == node;
+    }
+
+    @Override
+    public void execute(ComponentTransfer transfer) throws TransferException {
+        var componentId = transfer.getComponentId();
+        var sourceDeviceId = transfer.getSourceDeviceId();
+        var destinationDeviceId = transfer.getDestinationDeviceId();
+        if (sourceDeviceId == null && destinationDeviceId == null) {
+            throw new IllegalTransferType(componentId);
+        }
+        int source = sourceDeviceId == null ? -1 : getDevice(sourceDeviceId);
+        int destination = destinationDeviceId == null ? -1 : getDevice(destinationDeviceId);
+        int component = Ids.idOf(componentId);
+        accept(componentId, source, destination);
+
+        long ref = (long) node << REF_NODE_SHIFT | nextTransferNumber.getAndIncrement();
+        var home = new HomeTransfer();
+        homeTransfers.put(ref, home);
+        if (destination != -1) {
+            reservePlace(ref, home, source, destination);
+        }
+        if (source != -1 && !home.placeTakenInAdvance) {
+            call(deviceNodes[source], FREE, source, ref);
+        }
+        transfer.prepare();
+        if (source != -1 && call(deviceNodes[source], SIGNAL_PREPARED, source, ref)[0] == 1) {
+            long waiter = home.preparedWaiter.getAndSet(PREPARED);
+            if (waiter != NONE) {
+                call(nodeOf(waiter), RESUME_PREPARED, waiter);
+            }
+        }
+        if (home.whoFreedMe != NONE && call(nodeOf(home.whoFreedMe), AWAIT_PREPARED, home.whoFreedMe, ref)[0] == 0) {
+            while (!home.sawPrepared) {
+                park();
+            }
+        }
+        transfer.perform();
+        call(componentNode(component), FINISH, component, destination);
+        // from now on the transfer counts as prepared for whoever took its place, see AWAIT_PREPARED
+        homeTransfers.remove(ref);
+    }
+
+    private void accept(ComponentId componentId, int source, int destination) throws TransferException {
+        int component = Ids.idOf(componentId);
+        var result = call(componentNode(component), ACCEPT, component, source, destination);
+        int device = (int) result[1];
+        switch ((int) result[0]) {
+            case ALREADY_EXISTS -> throw device == -1 ? new ComponentAlreadyExists(componentId) :
+                new ComponentAlreadyExists(componentId, deviceIds[device]);
+            case DOES_NOT_EXIST -> throw new ComponentDoesNotExist(componentId, deviceIds[source]);
+            case DOES_NOT_NEED_TRANSFER -> throw new ComponentDoesNotNeedTransfer(componentId, deviceIds[destination]);
+            case BEING_OPERATED_ON -> throw new ComponentIsBeingOperatedOn(componentId);
+            default -> {
+            }
+        }
+    }
+
+    // Returns once the transfer is allowed to start, with whoFreedMe set.
+    private void reservePlace(long ref, HomeTransfer home, int source, int destination) {
+        var reply = call(deviceNodes[destination], RESERVE, destination, ref, source);
+        if (reply[0] == 1) {
+            home.whoFreedMe = reply[1];
+            return;
+        }
+        if (reply[1] == 1 && releaseCycledTransfers(ref, home, source, destination)) {
+            return;
+        }
+        while (!home.admitted) {
+            park();
+        }
+    }
+
+    // Called when queueing the transfer may have closed a cycle.
+    // Returns true if the transfer was admitted as a member of a cycle.
+    private boolean releaseCycledTransfers(long ref, HomeTransfer home, int source, int destination) {
+        long[] cycle; // devices from the destination back to the source
+        while ((cycle = call(GRAPH_NODE, CHECK_EDGE, source, destination)).length > 0) {
+            var lockingOrder = cycle.clone();
+            Arrays.sort(lockingOrder);
+            for (long device : lockingOrder) {
+                call(deviceNodes[(int) device], LOCK, device);
+            }
+            try {
+                if (call(deviceNodes[destination], CONTAINS, destination, ref)[0] == 0) {
+                    // someone has freed a place for us in the meantime
+                    return false;
+                }
+                // for every edge of the cycle pick the component which would be served first
+                var members = new long[cycle.length];
+                members[0] = ref;
+                int numOfMembers = 1;
+                while (numOfMembers < cycle.length) {
+                    long member = call(deviceNodes[(int) cycle[numOfMembers]], PEEK_FROM, cycle[numOfMembers],
+                                       cycle[numOfMembers - 1])[0];
+                    if (member == NONE) {
+                        break;
+                    }
+                    members[numOfMembers++] = member;
+                }
+                if (numOfMembers == cycle.length) {
+                    for (int i = 0; i < members.length; i++) {
+                        long memberSource = i == 0 ? source : cycle[i - 1];
+                        long memberDestination = cycle[i];
+                        call(deviceNodes[(int) memberDestination], REMOVE, memberDestination, members[i]);
+                        call(GRAPH_NODE, REMOVE_EDGE, memberSource, memberDestination);
+                    }
+                    // every member takes the place of the next one
+                    home.whoFreedMe = members[1];
+                    home.placeTakenInAdvance = true;
+                    for (int i = 1; i < members.length; i++) {
+                        call(nodeOf(members[i]), ADMIT, members[i], members[(i + 1) % members.length], 1);
+                    }
+                    return true;
+                }
+            } finally {
+                for (long device : lockingOrder) {
+                    call(deviceNodes[(int) device], UNLOCK, device);
+                }
+            }
+            // some component on the path has been released in the meantime, check again
+        }
+        return false;
+    }
+
+    private long[] handle(long[] message) {
+        return switch ((int) message[0]) {
+            case ACCEPT -> handleAccept((int) message[1], (int) message[2], (int) message[3]);
+            case FINISH -> handleFinish((int) message[1], (int) message[2]);
+            case RESERVE -> handleReserve((int) message[1], message[2], (int) message[3]);
+            case FREE -> handleFree((int) message[1], message[2]);
+            case SIGNAL_PREPARED -> handleSignalPrepared((int) message[1], message[2]);
+            case LOCK -> {
+                lock(devices[(int) message[1]]);
+                yield EMPTY;
+            }
+            case UNLOCK -> {
+                devices[(int) message[1]].lock.release();
+                yield EMPTY;
+            }
+            case CONTAINS -> new long[]{devices[(int) message[1]].waitingQueue.find(message[2]) == null ? 0 : 1};
+            case PEEK_FROM -> new long[]{devices[(int) message[1]].waitingQueue.peekFrom((int) message[2])};
+            case REMOVE -> {
+                var waitingQueue = devices[(int) message[1]].waitingQueue;
+                var waiter = waitingQueue.find(message[2]);
+                if (waiter != null) {
+                    waitingQueue.remove(waiter);
+                }
+                yield EMPTY;
+            }
+            case ADD_EDGE -> new long[]{waitForGraph.addEdge((int) message[1], (int) message[2]) ? 1 : 0};
+            case REMOVE_EDGE -> {
+                waitForGraph.removeEdge((int) message[1], (int) message[2]);
+                yield EMPTY;
+            }
+            case CHECK_EDGE -> {
+                var cycle = waitForGraph.checkEdge((int) message[1], (int) message[2]);
+                yield cycle == null ? EMPTY : Arrays.stream(cycle).asLongStream().toArray();
+            }
+            case ADMIT -> handleAdmit(message[1], message[2], message[3] == 1);
+            case AWAIT_PREPARED -> handleAwaitPrepared(message[1], message[2]);
+            case RESUME_PREPARED -> {
+                var home = homeTransfers.get(message[1]);
+                home.sawPrepared = true;
+                LockSupport.unpark(home.owner);
+                yield EMPTY;
+            }
+            default -> throw new IllegalArgumentException("Unknown message " + message[0]);
+        };
+    }
+
+    // Validates the transfer and marks its component as transferred.
+    private long[] handleAccept(int component, int source, int destination) {
+        var componentLock = components.lockFor(component);
+        componentLock.lock();
+        try {
+            int state = components.get(component);
+            if (source == -1) {
+                if (state != ComponentTable.ABSENT) {
+                    return new long[]{ALREADY_EXISTS, ComponentTable.deviceOf(state)};
+                }
+            } else if (state == ComponentTable.ABSENT || ComponentTable.deviceOf(state) != source) {
+                return new long[]{DOES_NOT_EXIST, -1};
+            }
+            if (state != ComponentTable.ABSENT && destination != -1 && ComponentTable.deviceOf(state) == destination) {
+                return new long[]{DOES_NOT_NEED_TRANSFER, -1};
+            }
+            if (state != ComponentTable.ABSENT && ComponentTable.isTransferred(state)) {
+                return new long[]{BEING_OPERATED_ON, -1};
+            }
+            // the component stays on its source device until perform() finishes
+            components.put(component, ComponentTable.state(source == -1 ? ComponentTable.NO_DEVICE : source, true));
+        } finally {
+            componentLock.unlock();
+        }
+        return new long[]{ACCEPTED, -1};
+    }
+
+    private long[] handleFinish(int component, int destination) {
+        var componentLock = components.lockFor(component);
+        componentLock.lock();
+        try {
+            if (destination == -1) {
+                components.remove(component);
+            } else {
+                components.put(component, ComponentTable.state(destination, false));
+            }
+        } finally {
+            componentLock.unlock();
+        }
+        return EMPTY;
+    }
+
+    private long[] handleReserve(int destination, long ref, int source) {
+        var device = devices[destination];
+        lock(device);
+        try {
+            if (device.numOfFreePlaces > 0) {
+                device.numOfFreePlaces--;
+                return new long[]{1, NONE};
+            }
+            // take the place of some component which is leaving
+            if (!device.leavingQueue.isEmpty()) {
+                var leavingComponents = device.leavingQueue.iterator();
+                long leavingComponent = leavingComponents.next();
+                leavingComponents.remove();
+                return new long[]{1, leavingComponent};
+            }
+            device.waitingQueue.offer(new Waiter(ref, source));
+            boolean mayCloseCycle = source != -1 && call(GRAPH_NODE, ADD_EDGE, source, destination)[0] == 1;
+            return new long[]{0, mayCloseCycle ? 1 : 0};
+        } finally {
+            device.lock.release();
+        }
+    }
+
+    // Hand our place on the source device over to the longest waiting component or leave it free.
+    private long[] handleFree(int source, long ref) {
+        var device = devices[source];
+        Waiter componentWaitingForMe;
+        lock(device);
+        try {
+            componentWaitingForMe = device.waitingQueue.poll();
+            if (componentWaitingForMe == null) {
+                device.leavingQueue.add(ref);
+            } else if (componentWaitingForMe.source != -1) {
+                call(GRAPH_NODE, REMOVE_EDGE, componentWaitingForMe.source, source);
+            }
+        } finally {
+            device.lock.release();
+        }
+        if (componentWaitingForMe != null) {
+            call(nodeOf(componentWaitingForMe.transfer), ADMIT, componentWaitingForMe.transfer, ref, 0);
+        }
+        return EMPTY;
+    }
+
+    // Frees the place unless somebody has claimed it already, then it has to be told we are prepared.
+    private long[] handleSignalPrepared(int source, long ref) {
+        var device = devices[source];
+        lock(device);
+        try {
+            boolean placeTaken = !device.leavingQueue.remove(ref);
+            if (!placeTaken) {
+                device.numOfFreePlaces++;
+            }
+            return new long[]{placeTaken ? 1 : 0};
+        } finally {
+            device.lock.release();
+        }
+    }
+
+    private long[] handleAdmit(long ref, long whoFreedMe, boolean placeTakenInAdvance) {
+        var home = homeTransfers.get(ref);
+        home.whoFreedMe = whoFreedMe;
+        home.placeTakenInAdvance = placeTakenInAdvance;
+        home.admitted = true;
+        LockSupport.unpark(home.owner);
+        return EMPTY;
+    }
+
+    // Replies 1 if the transfer has been prepared, otherwise the waiter is resumed once it is.
+    private long[] handleAwaitPrepared(long ref, long waiter) {
+        var home = homeTransfers.get(ref);
+        boolean prepared = home == null || !home.preparedWaiter.compareAndSet(NONE, waiter);
+        return new long[]{prepared ? 1 : 0};
+    }
+
+    private long[] call(int toNode, long... message) {
+        return toNode == node ? handle(message) : transport.call(toNode, message);
+    }
+
+    private int nodeOf(long ref) {
+        return (int) (ref >>> REF_NODE_SHIFT);
+    }
+
+    private int componentNode(int component) {
+        return Math.floorMod(component, numOfNodes);
+    }
+
+    private int getDevice(DeviceId deviceId) throws DeviceDoesNotExist {
+        int device = deviceIndexes.get(Ids.idOf(deviceId), -1);
+        if (device == -1) {
+            throw new DeviceDoesNotExist(deviceId);
+        }
+        return device;
+    }
+
+    private static void lock(NodeDevice device) {
+        try {
+            device.lock.acquire();
+        } catch (InterruptedException e) {
+            throw new RuntimeException("panic: unexpected thread interruption");
+        }
+    }
+
+    private void park() {
+        LockSupport.park(this);
+        if (Thread.interrupted()) {
+            throw new RuntimeException("panic: unexpected thread interruption");
+        }
+    }
+}
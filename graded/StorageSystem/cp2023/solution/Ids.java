@@ -0,0 +1,18 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+// Both kinds of ids define their hash code as the int they wrap.
+final class Ids {
+    private Ids() {
+    }
+
+    static int idOf(ComponentId componentId) {
+        return componentId.hashCode();
+    }
+
+    static int idOf(DeviceId deviceId) {
+        return deviceId.hashCode();
+    }
+}
@@ -0,0 +1,171 @@
+package cp2023.solution;
+
+import java.util.Arrays;
+
+// Open addressing map from ints to ints, with linear probing and backward shift deletion.
+// Not thread-safe. Entries can be iterated by slot, from 0 to capacity() - 1, except the one
+// with key NO_KEY, which marks empty slots and is therefore kept aside.
+final class IntIntHashMap {
+    static final int NO_KEY = -1;
+    private int[] keys;
+    private int[] values;
+    private int size;
+    private int mask;
+    private boolean containsNoKey;
+    private int noKeyValue;
+
+    IntIntHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(4, expectedSize * 2 - 1)) << 1;
+        this.keys = new int[capacity];
+        this.values = new int[capacity];
+        this.mask = capacity - 1;
+        Arrays.fill(keys, NO_KEY);
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return keys.length;
+    }
+
+    int keyAt(int slot) {
+        return keys[slot];
+    }
+
+    int valueAt(int slot) {
+        return values[slot];
+    }
+
+    boolean containsKey(int key) {
+        if (key == NO_KEY) {
+            return containsNoKey;
+        }
+        return keys[find(key)] == key;
+    }
+
+    int get(int key, int defaultValue) {
+        if (key == NO_KEY) {
+            return containsNoKey ? noKeyValue : defaultValue;
+        }
+        int slot = find(key);
+        return keys[slot] == key ? values[slot] : defaultValue;
+    }
+
+    // Returns the previous value or defaultValue if there was none.
+    int put(int key, int value, int defaultValue) {
+        if (key == NO_KEY) {
+            int previousValue = containsNoKey ? noKeyValue : defaultValue;
+            if (!containsNoKey) {
+                containsNoKey = true;
+                size++;
+            }
+            noKeyValue = value;
+            return previousValue;
+        }
+        int slot = find(key);
+        if (keys[slot] == key) {
+            int previousValue = values[slot];
+            values[slot] = value;
+            return previousValue;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size * 2 > keys.length) {
+            resize();
+        }
+        return defaultValue;
+    }
+
+    // Adds delta to the value of key (0 if absent) and removes the entry once it drops to 0.
+    int addTo(int key, int delta) {
+        if (key == NO_KEY) {
+            int value = get(key, 0) + delta;
+            if (value == 0) {
+                remove(key, 0);
+            } else {
+                put(key, value, 0);
+            }
+            return value;
+        }
+        int slot = find(key);
+        if (keys[slot] != key) {
+            put(key, delta, 0);
+            return delta;
+        }
+        int value = values[slot] + delta;
+        if (value == 0) {
+            removeSlot(slot);
+        } else {
+            values[slot] = value;
+        }
+        return value;
+    }
+
+    // Returns the removed value or defaultValue if there was none.
+    int remove(int key, int defaultValue) {
+        if (key == NO_KEY) {
+            if (!containsNoKey) {
+                return defaultValue;
+            }
+            containsNoKey = false;
+            size--;
+            return noKeyValue;
+        }
+        int slot = find(key);
+        if (keys[slot] != key) {
+            return defaultValue;
+        }
+        int previousValue = values[slot];
+        removeSlot(slot);
+        return previousValue;
+    }
+
+    // Slot holding key, or the empty slot where it would be inserted.
+    private int find(int key) {
+        int slot = hash(key) & mask;
+        while (keys[slot] != NO_KEY && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    // Shift back the following entries of the probe sequence, so no tombstones are needed.
+    private void removeSlot(int slot) {
+        size--;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (keys[next] != NO_KEY) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[hole] = NO_KEY;
+    }
+
+    private void resize() {
+        var oldKeys = keys;
+        var oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        mask = keys.length - 1;
+        Arrays.fill(keys, NO_KEY);
+        for (int slot = 0; slot < oldKeys.length; slot++) {
+            if (oldKeys[slot] != NO_KEY) {
+                int newSlot = find(oldKeys[slot]);
+                keys[newSlot] = oldKeys[slot];
+                values[newSlot] = oldValues[slot];
+            }
+        }
+    }
+
+    private static int hash(int key) {
+        int hash = key * 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -0,0 +1,52 @@
+package cp2023.solution;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Histogram of durations in nanoseconds with power of two buckets: bucket i counts durations
+// shorter than 2^i ns and not shorter than 2^(i-1) ns. Recording only touches striped counters.
+public final class LatencyHistogram {
+    public static final int NUM_OF_BUCKETS = 64;
+
+    private final LongAdder[] buckets;
+
+    LatencyHistogram() {
+        this.buckets = new LongAdder[NUM_OF_BUCKETS];
+        for (int i = 0; i < NUM_OF_BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        buckets[Math.min(NUM_OF_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(Math.max(0, nanos)))].increment();
+    }
+
+    public long count(int bucket) {
+        return buckets[bucket].sum();
+    }
+
+    public long count() {
+        long count = 0;
+        for (var bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    // Upper bound of the bucket containing the given fraction of recorded durations, 0 if there are none.
+    public long percentile(double fraction) {
+        long[] counts = new long[NUM_OF_BUCKETS];
+        long count = 0;
+        for (int i = 0; i < NUM_OF_BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+        long rank = (long) Math.ceil(fraction * count);
+        for (int i = 0; i < NUM_OF_BUCKETS; i++) {
+            rank -= counts[i];
+            if (rank <= 0 && counts[i] > 0) {
+                return i == NUM_OF_BUCKETS - 1 ? Long.MAX_VALUE : 1L << i;
+            }
+        }
+        return 0;
+    }
+}
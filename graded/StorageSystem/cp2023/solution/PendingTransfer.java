@@ -0,0 +1,161 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentTransfer;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+// Transfer accepted by the system, from validation until perform() finishes. Threads wait for it
+// by parking, and are woken directly by whoever holds the handle, without any lookups.
+// Asynchronous transfers have no thread waiting: waking them submits their continuation to the executor.
+// Handles are pooled, so every field is reset by init(). A handle is referenced by its own transfer
+// and by the one which took its place, until that one has seen it prepared.
+final class PendingTransfer {
+    private static final PendingTransfer PREPARED = new PendingTransfer();
+
+    ComponentTransfer transfer;
+    DeviceState source; // null when adding a component
+    DeviceState destination; // null when removing a component
+    PendingTransfer whoFreedMe; // set before admit() or by the transfer's own thread
+    boolean placeTakenInAdvance; // source place was already handed over while releasing a cycle or a batch
+    TransferPriority priority;
+    long waitingSince; // when queued for a place on the destination device, 0 if not queued
+    // links of the WaitingQueue of the destination, null when not queued
+    WaitingQueue waitingIn;
+    PendingTransfer previousWaiting;
+    PendingTransfer nextWaiting;
+    PendingTransfer previousFromSource;
+    PendingTransfer nextFromSource;
+    Executor executor; // null when the transfer is executed synchronously
+    Runnable continuation; // what to run on the executor once woken
+    CompletableFuture<Void> future; // completed after perform() of an asynchronous transfer
+    Throwable failure; // thrown by prepare() of an asynchronous transfer, whose perform() is skipped then
+    long acceptedAt; // 0 when metrics are not recorded
+    long preparedAt;
+    long queuedAt; // 0 when the event is not recorded
+    long preparedWaitAt;
+    private Thread owner;
+    private volatile boolean admitted; // wait when transfer is not permitted
+    // component taking our place which waits for our prepare(), or PREPARED
+    private final AtomicReference<PendingTransfer> preparedWaiter;
+    private final AtomicInteger references;
+
+    PendingTransfer() {
+        this.preparedWaiter = new AtomicReference<>();
+        this.references = new AtomicInteger();
+    }
+
+    void init(ComponentTransfer transfer, DeviceState source, DeviceState destination) {
+        this.transfer = transfer;
+        this.source = source;
+        this.destination = destination;
+        this.whoFreedMe = null;
+        this.placeTakenInAdvance = false;
+        this.priority = transfer instanceof PrioritizedTransfer prioritizedTransfer &&
+            prioritizedTransfer.getPriority() != null ? prioritizedTransfer.getPriority() : TransferPriority.NORMAL;
+        this.waitingSince = 0;
+        this.executor = null;
+        this.continuation = null;
+        this.future = null;
+        this.failure = null;
+        this.acceptedAt = 0;
+        this.preparedAt = 0;
+        this.queuedAt = 0;
+        this.preparedWaitAt = 0;
+        this.owner = Thread.currentThread();
+        this.admitted = false;
+        this.preparedWaiter.set(null);
+        this.references.set(1);
+    }
+
+    // Once the transfer sees itself admitted or prepared, it may finish and its handle may be reused by another
+    // transfer, so whoever wakes it reads how to wake it before that.
+    void admit() {
+        var executor = this.executor;
+        var continuation = this.continuation;
+        var owner = this.owner;
+        admitted = true;
+        resume(executor, continuation, owner);
+    }
+
+    void awaitAdmission() {
+        while (!admitted) {
+            park();
+        }
+    }
+
+    // Returns false if the transfer has not been admitted within the timeout.
+    boolean awaitAdmission(long timeoutNanos) {
+        long start = System.nanoTime();
+        while (!admitted) {
+            long remaining = timeoutNanos - (System.nanoTime() - start);
+            if (remaining <= 0) {
+                return false;
+            }
+            LockSupport.parkNanos(this, remaining);
+            checkInterrupted();
+        }
+        return true;
+    }
+
+    // A waiter is set at most once and goes on only once it is replaced with PREPARED, so it is read before.
+    void markPrepared() {
+        var waiter = preparedWaiter.get();
+        if (waiter == null && preparedWaiter.compareAndSet(null, PREPARED)) {
+            return;
+        }
+        waiter = preparedWaiter.get();
+        var executor = waiter.executor;
+        var continuation = waiter.continuation;
+        var owner = waiter.owner;
+        preparedWaiter.set(PREPARED);
+        resume(executor, continuation, owner);
+    }
+
+    // Called by the transfer which took our place. Returns true if we are prepared already,
+    // otherwise the waiter is resumed once we are.
+    boolean resumeWhenPrepared(PendingTransfer waiter) {
+        return !preparedWaiter.compareAndSet(null, waiter);
+    }
+
+    void awaitPrepared(PendingTransfer waiter) {
+        if (resumeWhenPrepared(waiter)) {
+            return;
+        }
+        while (preparedWaiter.get() != PREPARED) {
+            park();
+        }
+    }
+
+    // Called when another transfer starts referencing this handle.
+    void retain() {
+        references.incrementAndGet();
+    }
+
+    // Returns true if nobody references this handle anymore.
+    boolean release() {
+        return references.decrementAndGet() == 0;
+    }
+
+    private static void resume(Executor executor, Runnable continuation, Thread owner) {
+        if (executor == null) {
+            LockSupport.unpark(owner);
+        } else {
+            executor.execute(continuation);
+        }
+    }
+
+    private void park() {
+        LockSupport.park(this);
+        checkInterrupted();
+    }
+
+    private static void checkInterrupted() {
+        if (Thread.interrupted()) {
+            throw new RuntimeException("panic: unexpected thread interruption");
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentTransfer;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Bounded pool of transfer handles. Handles are moved in and out of slots with a single CAS, so a handle
+// is never in two slots. When the slots probed are empty or full, handles are allocated or dropped.
+final class PendingTransferPool {
+    private static final int PROBES = 4;
+    private final AtomicReferenceArray<PendingTransfer> slots;
+    private final int mask;
+
+    PendingTransferPool() {
+        int numOfSlots = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 8 - 1)) << 1;
+        this.slots = new AtomicReferenceArray<>(numOfSlots);
+        this.mask = numOfSlots - 1;
+    }
+
+    PendingTransfer acquire(ComponentTransfer transfer, DeviceState source, DeviceState destination) {
+        PendingTransfer pendingTransfer = null;
+        int slot = ThreadLocalRandom.current().nextInt();
+        for (int i = 0; i < PROBES && pendingTransfer == null; i++, slot++) {
+            var candidate = slots.get(slot & mask);
+            if (candidate != null && slots.compareAndSet(slot & mask, candidate, null)) {
+                pendingTransfer = candidate;
+            }
+        }
+        if (pendingTransfer == null) {
+            pendingTransfer = new PendingTransfer();
+        }
+        pendingTransfer.init(transfer, source, destination);
+        return pendingTransfer;
+    }
+
+    // Drops a reference to the handle and takes it back once nobody references it.
+    void release(PendingTransfer pendingTransfer) {
+        if (!pendingTransfer.release()) {
+            return;
+        }
+        pendingTransfer.transfer = null;
+        pendingTransfer.whoFreedMe = null;
+        pendingTransfer.executor = null;
+        pendingTransfer.continuation = null;
+        pendingTransfer.future = null;
+        pendingTransfer.failure = null;
+        int slot = ThreadLocalRandom.current().nextInt();
+        for (int i = 0; i < PROBES; i++, slot++) {
+            if (slots.compareAndSet(slot & mask, null, pendingTransfer)) {
+                return;
+            }
+        }
+    }
+}
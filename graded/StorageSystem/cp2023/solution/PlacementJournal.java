@@ -0,0 +1,185 @@
+package cp2023.solution;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Write-ahead journal of completed transfers and of changes of devices, memory-mapped in segments which are
+// added as it grows. Every record takes RECORD_SIZE bytes: component, device, kind and a checksum which also
+// covers the position of the record, so that replay stops at the first record which has not been written
+// completely. A record of a device holds its number of slots in place of the component, 0 if it has been removed.
+// The header is a record of its own: magic, version and two zeros.
+// A transfer appends its record before it updates the component table, so records of every component are
+// in the order of its transfers, and waits until the record is durable only after that, holding no locks.
+// Waiting transfers are made durable together by a single force() of whoever comes first (group commit).
+final class PlacementJournal {
+    static final int RECORD_SIZE = 16;
+    private static final int MAGIC = 0x4350504A;
+    private static final int VERSION = 2; // version 1 had no records of devices, it is read as it is
+    private static final int SEGMENT_SIZE = 1 << 20;
+    private static final int PLACED = 1;
+    private static final int REMOVED = 2;
+    private static final int DEVICE = 3;
+
+    interface Visitor {
+        // deviceId is meaningless if the component has been removed
+        void visitComponent(int componentId, int deviceId, boolean removed);
+
+        // The device has been added if it was not there, numOfSlots is 0 if it has been removed.
+        void visitDevice(int deviceId, int numOfSlots);
+    }
+
+    private final Path path;
+    private volatile MappedByteBuffer[] segments; // replaced under appendLock when the journal grows
+    private final ReentrantLock appendLock;
+    private final ReentrantLock forceLock;
+    private volatile long end; // records before it are written, changed under appendLock
+    private volatile long durableEnd; // records before it are forced to the file, changed under forceLock
+
+    private PlacementJournal(Path path) {
+        this.path = path;
+        this.segments = new MappedByteBuffer[0];
+        this.appendLock = new ReentrantLock();
+        this.forceLock = new ReentrantLock();
+    }
+
+    // Creates the journal if the file does not exist.
+    static PlacementJournal open(Path path) throws IOException {
+        var journal = new PlacementJournal(path);
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                            StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size % SEGMENT_SIZE != 0) {
+                throw new IOException(path + " is not a placement journal");
+            }
+            do {
+                journal.addSegment(channel);
+            } while ((long) journal.segments.length * SEGMENT_SIZE < size);
+            var header = journal.segments[0];
+            if (size == 0) {
+                header.putInt(0, MAGIC);
+                header.putInt(4, VERSION);
+                header.force(0, RECORD_SIZE);
+            } else if (header.getInt(0) != MAGIC || header.getInt(4) < 1 || header.getInt(4) > VERSION) {
+                throw new IOException(path + " is not a placement journal");
+            } else if (header.getInt(4) != VERSION) {
+                header.putInt(4, VERSION);
+                header.force(0, RECORD_SIZE);
+            }
+        }
+        journal.end = RECORD_SIZE;
+        journal.durableEnd = RECORD_SIZE;
+        return journal;
+    }
+
+    // Visits the records in the order they were appended. Must be called once, before the first append(),
+    // as appending continues after the last complete record.
+    void replay(Visitor visitor) {
+        long position = RECORD_SIZE;
+        while (position < (long) segments.length * SEGMENT_SIZE) {
+            var segment = segments[(int) (position / SEGMENT_SIZE)];
+            int offset = (int) (position % SEGMENT_SIZE);
+            int componentId = segment.getInt(offset);
+            int deviceId = segment.getInt(offset + 4);
+            int kind = segment.getInt(offset + 8);
+            if ((kind != PLACED && kind != REMOVED && kind != DEVICE) ||
+                segment.getInt(offset + 12) != checksum(componentId, deviceId, kind, position)) {
+                break;
+            }
+            if (kind == DEVICE) {
+                visitor.visitDevice(deviceId, componentId);
+            } else {
+                visitor.visitComponent(componentId, deviceId, kind == REMOVED);
+            }
+            position += RECORD_SIZE;
+        }
+        end = position;
+        durableEnd = position;
+    }
+
+    // Returns the position to pass to awaitDurable().
+    long appendPlaced(int componentId, int deviceId) {
+        return append(componentId, deviceId, PLACED);
+    }
+
+    long appendRemoved(int componentId) {
+        return append(componentId, 0, REMOVED);
+    }
+
+    // Added or resized device, numOfSlots is 0 if it has been removed.
+    long appendDevice(int deviceId, int numOfSlots) {
+        return append(numOfSlots, deviceId, DEVICE);
+    }
+
+    private long append(int componentId, int deviceId, int kind) {
+        appendLock.lock();
+        try {
+            long position = end;
+            if (position == (long) segments.length * SEGMENT_SIZE) {
+                try (var channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    addSegment(channel);
+                }
+            }
+            var segment = segments[(int) (position / SEGMENT_SIZE)];
+            int offset = (int) (position % SEGMENT_SIZE);
+            segment.putInt(offset, componentId);
+            segment.putInt(offset + 4, deviceId);
+            segment.putInt(offset + 8, kind);
+            segment.putInt(offset + 12, checksum(componentId, deviceId, kind, position));
+            end = position + RECORD_SIZE;
+            return end;
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot grow placement journal " + path, e);
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    // Returns once every record before the position is in the file.
+    void awaitDurable(long position) {
+        if (durableEnd >= position) {
+            return;
+        }
+        forceLock.lock();
+        try {
+            // whoever held the lock may have forced our record already
+            long from = durableEnd;
+            if (from >= position) {
+                return;
+            }
+            long to = end;
+            var segments = this.segments; // read after end, so it has every segment before it
+            for (long start = from; start < to; start = (start / SEGMENT_SIZE + 1) * SEGMENT_SIZE) {
+                int offset = (int) (start % SEGMENT_SIZE);
+                int length = (int) Math.min(SEGMENT_SIZE - offset, to - start);
+                segments[(int) (start / SEGMENT_SIZE)].force(offset, length);
+            }
+            durableEnd = to;
+        } finally {
+            forceLock.unlock();
+        }
+    }
+
+    // Called with appendLock held, or before the journal is shared.
+    private void addSegment(FileChannel channel) throws IOException {
+        var grown = Arrays.copyOf(segments, segments.length + 1);
+        grown[segments.length] = channel.map(FileChannel.MapMode.READ_WRITE, (long) segments.length * SEGMENT_SIZE,
+                                             SEGMENT_SIZE);
+        segments = grown;
+        // the file has grown, which force() of the mapping does not make durable
+        channel.force(true);
+    }
+
+    private static int checksum(int componentId, int deviceId, int kind, long position) {
+        long h = position * 0x9E3779B97F4A7C15L;
+        h = (h ^ componentId) * 0xBF58476D1CE4E5B9L;
+        h = (h ^ deviceId) * 0x94D049BB133111EBL;
+        h = (h ^ kind) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,87 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+// Chooses the device a new component is added to, see AsyncStorageSystem.executePlaced().
+// A device is worth choosing only if it has a free place, otherwise the component waits for one.
+public interface PlacementPolicy {
+
+    // Devices accepting components, read without locks. Free places change concurrently,
+    // so a place seen free may be taken before the component gets there.
+    interface Candidates {
+        int size(); // at least one
+
+        DeviceId idAt(int position);
+
+        int freePlacesAt(int position); // nobody is leaving or waiting for, negative over the slots
+    }
+
+    // Returns the position of the chosen device among the candidates.
+    int choose(ComponentId componentId, Candidates candidates);
+
+    // The device with the most free places, the first of them on a tie.
+    static PlacementPolicy leastLoaded() {
+        return (componentId, candidates) -> mostFreePlaces(candidates);
+    }
+
+    // The one with more free places of two devices picked at random, or the least loaded one if neither
+    // has any, so that the component only waits when all devices are full.
+    static PlacementPolicy powerOfTwoChoices() {
+        return (componentId, candidates) -> {
+            int size = candidates.size();
+            var random = ThreadLocalRandom.current();
+            int first = random.nextInt(size);
+            int second = size == 1 ? first : (first + 1 + random.nextInt(size - 1)) % size;
+            int chosen = candidates.freePlacesAt(second) > candidates.freePlacesAt(first) ? second : first;
+            return candidates.freePlacesAt(chosen) > 0 ? chosen : mostFreePlaces(candidates);
+        };
+    }
+
+    // Rendezvous hashing: every component ranks devices by a hash of both ids and goes to the first one
+    // with a free place, or to the first one if all are full. Adding or removing a device only moves
+    // the components which rank it first, and a component goes back where it was while there is room.
+    static PlacementPolicy consistentHash() {
+        return (componentId, candidates) -> {
+            int first = 0;
+            int firstWithRoom = -1;
+            long firstScore = Long.MIN_VALUE;
+            long firstWithRoomScore = Long.MIN_VALUE;
+            for (int position = 0; position < candidates.size(); position++) {
+                long score = rendezvousScore(Ids.idOf(componentId), Ids.idOf(candidates.idAt(position)));
+                if (score > firstScore) {
+                    first = position;
+                    firstScore = score;
+                }
+                if (score > firstWithRoomScore && candidates.freePlacesAt(position) > 0) {
+                    firstWithRoom = position;
+                    firstWithRoomScore = score;
+                }
+            }
+            return firstWithRoom == -1 ? first : firstWithRoom;
+        };
+    }
+
+    private static int mostFreePlaces(Candidates candidates) {
+        int chosen = 0;
+        int chosenFreePlaces = candidates.freePlacesAt(0);
+        for (int position = 1; position < candidates.size(); position++) {
+            int freePlaces = candidates.freePlacesAt(position);
+            if (freePlaces > chosenFreePlaces) {
+                chosen = position;
+                chosenFreePlaces = freePlaces;
+            }
+        }
+        return chosen;
+    }
+
+    // Finalizer of SplitMix64 over both ids, so that scores of a component are independent across devices.
+    private static long rendezvousScore(int component, int device) {
+        long z = ((long) component << 32 | (device & 0xFFFFFFFFL)) + 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,49 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+
+// Transfer with a priority class, other transfers are NORMAL. The class only matters while the transfer
+// waits for a place on its destination device.
+public interface PrioritizedTransfer extends ComponentTransfer {
+
+    TransferPriority getPriority();
+
+    static PrioritizedTransfer withPriority(ComponentTransfer transfer, TransferPriority priority) {
+        if (transfer == null || priority == null) {
+            throw new IllegalArgumentException("transfer or priority is null");
+        }
+        return new PrioritizedTransfer() {
+            @Override
+            public TransferPriority getPriority() {
+                return priority;
+            }
+
+            @Override
+            public ComponentId getComponentId() {
+                return transfer.getComponentId();
+            }
+
+            @Override
+            public DeviceId getSourceDeviceId() {
+                return transfer.getSourceDeviceId();
+            }
+
+            @Override
+            public DeviceId getDestinationDeviceId() {
+                return transfer.getDestinationDeviceId();
+            }
+
+            @Override
+            public void prepare() {
+                transfer.prepare();
+            }
+
+            @Override
+            public void perform() {
+                transfer.perform();
+            }
+        };
+    }
+}
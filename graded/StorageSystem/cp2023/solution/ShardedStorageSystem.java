@@ -0,0 +1,39 @@
+package cp2023.solution;
+
+import cp2023.base.DeviceId;
+
+// Storage system whose devices are split into shards by their ids: device d goes to shard d mod numOfShards.
+// Devices are coordinated each on its own anyway, so what is split is the wait-for graph, see ShardedWaitForGraph.
+// Transfers waiting within a shard look only at the graph of their shard. Waiting across shards is detected
+// between shards first, and only a possible cycle of shards leads to a search over the whole graph.
+// Routing transfers so that their devices share a shard keeps them independent of other shards.
+public final class ShardedStorageSystem extends CP2023StorageSystem {
+    private final int numOfShards;
+    private final ShardedWaitForGraph waitForGraph;
+
+    ShardedStorageSystem(DeviceId[] deviceIds, IntIntHashMap deviceIndexes, int[] numOfSlots, int[] numOfFreePlaces,
+                         ComponentTable components, int numOfShards, ShardedWaitForGraph waitForGraph,
+                         PlacementJournal journal, AdmissionControl admissionControl) {
+        super(deviceIds, deviceIndexes, numOfSlots, numOfFreePlaces, components, waitForGraph, journal,
+              admissionControl);
+        this.numOfShards = numOfShards;
+        this.waitForGraph = waitForGraph;
+    }
+
+    public int numOfShards() {
+        return numOfShards;
+    }
+
+    public int shardOf(DeviceId deviceId) {
+        return shardOf(deviceId, numOfShards);
+    }
+
+    // Searches over all shards at once, each locking the wait-for graphs of all shards.
+    public long crossShardSearches() {
+        return waitForGraph.numOfCrossShardSearches();
+    }
+
+    static int shardOf(DeviceId deviceId, int numOfShards) {
+        return Math.floorMod(Ids.idOf(deviceId), numOfShards);
+    }
+}
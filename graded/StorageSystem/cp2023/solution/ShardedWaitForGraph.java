@@ -0,0 +1,286 @@
+package cp2023.solution;
+
+import cp2023.base.DeviceId;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Wait-for graph split by shards of devices. Edges within a shard go to its own WaitForGraph, so transfers
+// of different shards never contend for a graph. Edges crossing shards are only counted, between their
+// devices and between their shards, as they are followed only by searches across shards. There are few shards, so the graph of shards is searched
+// from scratch, without keeping it in topological order.
+//
+// A cycle within a shard is found by its graph. A cycle crossing shards passes through every shard on it
+// both ways, and its edges between shards form a cycle of shards, so it can only be closed by an edge
+// between shards which closes a cycle of shards, or by an edge within a shard which has edges to and from
+// other shards. Only then all graphs are locked and searched together. Whoever adds the last edge of
+// a cycle adds it before looking at the graph of shards, so at least one of the transfers closing a cycle
+// concurrently sees all of its edges.
+final class ShardedWaitForGraph implements CycleDetector {
+    // Arrays by device grow as devices are added. They are read without locks, which is safe, because
+    // a device is used only after the system has published it, which happens after it is added here.
+    private int[] shardOf; // by device
+    private int[] localIndexOf; // index of every device within its shard
+    private final int[][] devicesOf; // devices of every shard by their local indexes
+    private final WaitForGraph[] shardGraphs;
+    private final ReentrantLock shardsLock; // guards the counts of edges between shards and the buffers below
+    private IntIntHashMap[] crossSuccessors; // by device, number of edges to every device of another shard
+    private final int[][] numOfShardEdges;
+    private final int[] numOfEdgesOut; // to other shards
+    private final int[] numOfEdgesIn; // from other shards
+    private final int[] shardQueue;
+    private final boolean[] shardVisited;
+    private final ReentrantLock searchLock; // guards the buffers below, one search across shards at a time
+    private int[] queue;
+    private int[] parent;
+    private int[] visitStamp;
+    private int currentVisitStamp;
+    private volatile long numOfCrossShardSearches;
+
+    ShardedWaitForGraph(int[] shardOf, int numOfShards, int workBudget) {
+        int numOfDevices = shardOf.length;
+        this.shardOf = shardOf;
+        this.localIndexOf = new int[numOfDevices];
+        var shardSizes = new int[numOfShards];
+        for (int device = 0; device < numOfDevices; device++) {
+            localIndexOf[device] = shardSizes[shardOf[device]]++;
+        }
+        this.devicesOf = new int[numOfShards][];
+        this.shardGraphs = new WaitForGraph[numOfShards];
+        for (int shard = 0; shard < numOfShards; shard++) {
+            devicesOf[shard] = new int[shardSizes[shard]];
+            shardGraphs[shard] = new WaitForGraph(Math.max(1, shardSizes[shard]), workBudget);
+        }
+        for (int device = 0; device < numOfDevices; device++) {
+            devicesOf[shardOf[device]][localIndexOf[device]] = device;
+        }
+        this.shardsLock = new ReentrantLock();
+        this.crossSuccessors = new IntIntHashMap[numOfDevices];
+        for (int device = 0; device < numOfDevices; device++) {
+            crossSuccessors[device] = new IntIntHashMap(1);
+        }
+        this.numOfShardEdges = new int[numOfShards][numOfShards];
+        this.numOfEdgesOut = new int[numOfShards];
+        this.numOfEdgesIn = new int[numOfShards];
+        this.shardQueue = new int[numOfShards];
+        this.shardVisited = new boolean[numOfShards];
+        this.searchLock = new ReentrantLock();
+        this.queue = new int[numOfDevices];
+        this.parent = new int[numOfDevices];
+        this.visitStamp = new int[numOfDevices];
+    }
+
+    private int numOfShards() {
+        return shardGraphs.length;
+    }
+
+    long numOfCrossShardSearches() {
+        return numOfCrossShardSearches;
+    }
+
+    @Override
+    public void addDevice(int device, DeviceId deviceId) {
+        int shard = ShardedStorageSystem.shardOf(deviceId, numOfShards());
+        searchLock.lock();
+        try {
+            if (device == shardOf.length) {
+                int capacity = shardOf.length * 2;
+                shardOf = Arrays.copyOf(shardOf, capacity);
+                localIndexOf = Arrays.copyOf(localIndexOf, capacity);
+                queue = Arrays.copyOf(queue, capacity);
+                parent = Arrays.copyOf(parent, capacity);
+                visitStamp = Arrays.copyOf(visitStamp, capacity);
+            }
+            int localIndex = devicesOf[shard].length;
+            shardGraphs[shard].addDevice(localIndex, deviceId);
+            shardsLock.lock();
+            try {
+                if (device == crossSuccessors.length) {
+                    crossSuccessors = Arrays.copyOf(crossSuccessors, shardOf.length);
+                }
+                crossSuccessors[device] = new IntIntHashMap(1);
+            } finally {
+                shardsLock.unlock();
+            }
+            devicesOf[shard] = Arrays.copyOf(devicesOf[shard], localIndex + 1);
+            devicesOf[shard][localIndex] = device;
+            shardOf[device] = shard;
+            localIndexOf[device] = localIndex;
+        } finally {
+            searchLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean addEdge(int source, int destination) {
+        int shard = shardOf[source];
+        int destinationShard = shardOf[destination];
+        if (shard == destinationShard) {
+            boolean mayCloseCycle = shardGraphs[shard].addEdge(localIndexOf[source], localIndexOf[destination]);
+            return mayCloseCycle || hasEdgesBothWays(shard);
+        }
+        countCrossEdge(source, destination, 1);
+        return true;
+    }
+
+    @Override
+    public void removeEdge(int source, int destination) {
+        int shard = shardOf[source];
+        int destinationShard = shardOf[destination];
+        if (shard == destinationShard) {
+            shardGraphs[shard].removeEdge(localIndexOf[source], localIndexOf[destination]);
+        } else {
+            countCrossEdge(source, destination, -1);
+        }
+    }
+
+    @Override
+    public int[] checkEdge(int source, int destination) {
+        int shard = shardOf[source];
+        int destinationShard = shardOf[destination];
+        if (shard == destinationShard) {
+            var localPath = shardGraphs[shard].checkEdge(localIndexOf[source], localIndexOf[destination]);
+            if (localPath != null) {
+                var path = new int[localPath.length];
+                for (int i = 0; i < path.length; i++) {
+                    path[i] = devicesOf[shard][localPath[i]];
+                }
+                return path;
+            }
+            if (!hasEdgesBothWays(shard)) {
+                return null;
+            }
+        } else if (!shardReaches(destinationShard, shard)) {
+            return null;
+        }
+        return searchAcrossShards(source, destination);
+    }
+
+    private void countCrossEdge(int source, int destination, int delta) {
+        int shard = shardOf[source];
+        int destinationShard = shardOf[destination];
+        shardsLock.lock();
+        try {
+            crossSuccessors[source].addTo(destination, delta);
+            numOfShardEdges[shard][destinationShard] += delta;
+            numOfEdgesOut[shard] += delta;
+            numOfEdgesIn[destinationShard] += delta;
+        } finally {
+            shardsLock.unlock();
+        }
+    }
+
+    private boolean hasEdgesBothWays(int shard) {
+        shardsLock.lock();
+        try {
+            return numOfEdgesOut[shard] > 0 && numOfEdgesIn[shard] > 0;
+        } finally {
+            shardsLock.unlock();
+        }
+    }
+
+    private boolean shardReaches(int start, int target) {
+        shardsLock.lock();
+        try {
+            Arrays.fill(shardVisited, false);
+            int head = 0;
+            int tail = 0;
+            shardVisited[start] = true;
+            shardQueue[tail++] = start;
+            while (head < tail) {
+                int shard = shardQueue[head++];
+                if (shard == target) {
+                    return true;
+                }
+                for (int next = 0; next < numOfShardEdges.length; next++) {
+                    if (numOfShardEdges[shard][next] > 0 && !shardVisited[next]) {
+                        shardVisited[next] = true;
+                        shardQueue[tail++] = next;
+                    }
+                }
+            }
+            return false;
+        } finally {
+            shardsLock.unlock();
+        }
+    }
+
+    // Breadth-first search from the destination back to the source over all edges, with all graphs
+    // and the edges between shards locked.
+    private int[] searchAcrossShards(int source, int destination) {
+        searchLock.lock();
+        for (var shardGraph : shardGraphs) {
+            shardGraph.lockEdges();
+        }
+        shardsLock.lock();
+        try {
+            numOfCrossShardSearches++;
+            if (!hasEdge(source, destination)) {
+                return null;
+            }
+            currentVisitStamp++;
+            int head = 0;
+            int tail = 0;
+            visitStamp[destination] = currentVisitStamp;
+            queue[tail++] = destination;
+            while (head < tail) {
+                int device = queue[head++];
+                int shard = shardOf[device];
+                var localEdges = shardGraphs[shard].successorsOf(localIndexOf[device]);
+                for (int slot = 0; slot < localEdges.capacity(); slot++) {
+                    int candidate = localEdges.keyAt(slot);
+                    if (candidate != IntIntHashMap.NO_KEY) {
+                        tail = visit(devicesOf[shard][candidate], device, tail);
+                    }
+                }
+                var edges = crossSuccessors[device];
+                for (int slot = 0; slot < edges.capacity(); slot++) {
+                    int candidate = edges.keyAt(slot);
+                    if (candidate != IntIntHashMap.NO_KEY) {
+                        tail = visit(candidate, device, tail);
+                    }
+                }
+                if (visitStamp[source] == currentVisitStamp) {
+                    return pathTo(destination, source);
+                }
+            }
+            return null;
+        } finally {
+            shardsLock.unlock();
+            for (var shardGraph : shardGraphs) {
+                shardGraph.unlockEdges();
+            }
+            searchLock.unlock();
+        }
+    }
+
+    private boolean hasEdge(int source, int destination) {
+        int shard = shardOf[source];
+        if (shard == shardOf[destination]) {
+            return shardGraphs[shard].successorsOf(localIndexOf[source]).containsKey(localIndexOf[destination]);
+        }
+        return crossSuccessors[source].containsKey(destination);
+    }
+
+    private int visit(int device, int from, int tail) {
+        if (visitStamp[device] == currentVisitStamp) {
+            return tail;
+        }
+        visitStamp[device] = currentVisitStamp;
+        parent[device] = from;
+        queue[tail] = device;
+        return tail + 1;
+    }
+
+    private int[] pathTo(int start, int target) {
+        int length = 1;
+        for (int device = target; device != start; device = parent[device]) {
+            length++;
+        }
+        var path = new int[length];
+        for (int device = target, i = length - 1; i >= 0; device = parent[device], i--) {
+            path[i] = device;
+        }
+        return path;
+    }
+}
@@ -7,10 +7,12 @@
  */
 package cp2023.solution;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Map;
-import java.util.Optional;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.TreeMap;
 
 import cp2023.base.ComponentId;
 import cp2023.base.DeviceId;
@@ -18,69 +20,404 @@ import cp2023.base.StorageSystem;
 
 
 public final class StorageSystemFactory {
+    private static final int SNAPSHOT_BATCH_SIZE = 256; // components put into a segment under a single lock
+    private static final int NOT_SHARDED = 0;
 
     public static StorageSystem newSystem(Map<DeviceId, Integer> deviceTotalSlots,
                                           Map<ComponentId, DeviceId> componentPlacement) {
+        return newAsyncSystem(deviceTotalSlots, componentPlacement);
+    }
+
+    // Same system as newSystem(), whose signature is fixed, with asynchronous and batch transfers.
+    public static AsyncStorageSystem newAsyncSystem(Map<DeviceId, Integer> deviceTotalSlots,
+                                                    Map<ComponentId, DeviceId> componentPlacement) {
+        return newSystem(deviceTotalSlots, componentPlacement, WaitForGraph.DEFAULT_WORK_BUDGET);
+    }
+
+    // cycleSearchWorkBudget bounds how long a single cycle search holds the wait-for graph
+    public static AsyncStorageSystem newSystem(Map<DeviceId, Integer> deviceTotalSlots,
+                                               Map<ComponentId, DeviceId> componentPlacement,
+                                               int cycleSearchWorkBudget) {
+        return newSystem(deviceTotalSlots, componentPlacement, cycleSearchWorkBudget, null,
+                         AdmissionControl.UNLIMITED, NOT_SHARDED);
+    }
+
+    // At most admissionControl.maxWaitersPerDevice() transfers wait in line for a place on a single device,
+    // see AdmissionControl for what happens to the others, whose number is limited only under FAIL.
+    public static AsyncStorageSystem newSystem(Map<DeviceId, Integer> deviceTotalSlots,
+                                               Map<ComponentId, DeviceId> componentPlacement,
+                                               AdmissionControl admissionControl) {
+        if (admissionControl == null) {
+            throw new IllegalArgumentException("admissionControl is null");
+        }
+        return newSystem(deviceTotalSlots, componentPlacement, WaitForGraph.DEFAULT_WORK_BUDGET, null,
+                         admissionControl, NOT_SHARDED);
+    }
+
+    // Devices are split into numOfShards shards by their ids, see ShardedStorageSystem.
+    public static ShardedStorageSystem newShardedSystem(Map<DeviceId, Integer> deviceTotalSlots,
+                                                        Map<ComponentId, DeviceId> componentPlacement,
+                                                        int numOfShards) {
+        if (numOfShards <= 0) {
+            throw new IllegalArgumentException("numOfShards must be positive");
+        }
+        return (ShardedStorageSystem) newSystem(deviceTotalSlots, componentPlacement,
+                                                WaitForGraph.DEFAULT_WORK_BUDGET, null, AdmissionControl.UNLIMITED,
+                                                numOfShards);
+    }
+
+    // One node of a system spread over nodes, which are numbered from 0 and talk through the transport,
+    // see DistributedStorageSystem. Every node is created with the same maps, deviceNodes tells
+    // which node owns every device, and transfers may be executed on any of them.
+    public static DistributedStorageSystem newNode(int node, Map<DeviceId, Integer> deviceTotalSlots,
+                                                   Map<DeviceId, Integer> deviceNodes,
+                                                   Map<ComponentId, DeviceId> componentPlacement,
+                                                   Transport transport) {
         if (deviceTotalSlots == null) {
             throw new IllegalArgumentException("deviceTotalsSlots is null");
         }
+        if (deviceNodes == null) {
+            throw new IllegalArgumentException("deviceNodes is null");
+        }
         if (componentPlacement == null) {
             throw new IllegalArgumentException("componentPlacement is null");
         }
+        if (transport == null) {
+            throw new IllegalArgumentException("transport is null");
+        }
         if (deviceTotalSlots.isEmpty()) {
             throw new IllegalArgumentException("deviceTotalSlots is empty");
         }
-        var numOfPlacesLeftOnDevice = getNumOfPlacesLeftOnDevice(deviceTotalSlots);
-        var componentPlacementOptional = getComponentPlacementOptional(componentPlacement, numOfPlacesLeftOnDevice);
-        return new CP2023StorageSystem(numOfPlacesLeftOnDevice, componentPlacementOptional);
+        // every node has to give devices the same indexes, whatever the order of its map
+        var sortedDeviceTotalSlots = new TreeMap<DeviceId, Integer>(Comparator.comparingInt(Ids::idOf));
+        for (var deviceTotalSlotsEntry : deviceTotalSlots.entrySet()) {
+            if (deviceTotalSlotsEntry.getKey() == null) {
+                throw new IllegalArgumentException("deviceTotalSlots contains undefined device");
+            }
+            sortedDeviceTotalSlots.put(deviceTotalSlotsEntry.getKey(), deviceTotalSlotsEntry.getValue());
+        }
+        var deviceIds = new DeviceId[deviceTotalSlots.size()];
+        var numOfFreePlaces = new int[deviceIds.length];
+        var deviceIndexes = getDeviceIndexes(sortedDeviceTotalSlots, deviceIds, numOfFreePlaces);
+        var allComponents = getComponents(componentPlacement, deviceIndexes, numOfFreePlaces);
+        var owners = new int[deviceIds.length];
+        int numOfNodes = 0;
+        for (int device = 0; device < deviceIds.length; device++) {
+            var owner = deviceNodes.get(deviceIds[device]);
+            if (owner == null) {
+                throw new IllegalArgumentException("Device " + deviceIds[device] + " has undefined node");
+            }
+            if (owner < 0) {
+                throw new IllegalArgumentException("Device " + deviceIds[device] + " has negative node");
+            }
+            owners[device] = owner;
+            numOfNodes = Math.max(numOfNodes, owner + 1);
+        }
+        if (node < 0 || node >= numOfNodes) {
+            throw new IllegalArgumentException("Node " + node + " owns no devices");
+        }
+        // the node keeps the state of components with ids equal to its number modulo the number of nodes
+        var components = new ComponentTable(componentPlacement.size() / numOfNodes + 1);
+        for (var componentId : componentPlacement.keySet()) {
+            int component = Ids.idOf(componentId);
+            if (Math.floorMod(component, numOfNodes) == node) {
+                components.put(component, allComponents.get(component));
+            }
+        }
+        return new DistributedStorageSystem(node, numOfNodes, deviceIds, deviceIndexes, owners, numOfFreePlaces,
+                                            components, transport);
+    }
+
+    // Every performed transfer is journaled before execute() returns, every change of devices before the call
+    // making it returns. A transfer whose prepare() or perform() has failed is not journaled. deviceTotalSlots
+    // and componentPlacement are the ones the journal was created with, the changes journaled so far are replayed
+    // over them. A journal which has been cut in the middle of an exchange of components, or has skipped a failed
+    // transfer, may leave a device with more components than slots, it gets back within its slots as
+    // components leave it.
+    public static AsyncStorageSystem newSystem(Map<DeviceId, Integer> deviceTotalSlots,
+                                               Map<ComponentId, DeviceId> componentPlacement,
+                                               Path journalPath) throws IOException {
+        if (journalPath == null) {
+            throw new IllegalArgumentException("journalPath is null");
+        }
+        return newSystem(deviceTotalSlots, componentPlacement, WaitForGraph.DEFAULT_WORK_BUDGET,
+                         PlacementJournal.open(journalPath), AdmissionControl.UNLIMITED, NOT_SHARDED);
+    }
+
+    // Same checks as for maps, but components are read straight from the mapped snapshot, see SystemSnapshot,
+    // and put into the table in batches of a segment. It all happens on the calling thread.
+    public static AsyncStorageSystem newSystem(Path snapshotPath) throws IOException {
+        if (snapshotPath == null) {
+            throw new IllegalArgumentException("snapshotPath is null");
+        }
+        var snapshot = SystemSnapshot.map(snapshotPath);
+        if (snapshot.numOfDevices == 0) {
+            throw new IllegalArgumentException("deviceTotalSlots is empty");
+        }
+        var deviceIds = new DeviceId[snapshot.numOfDevices];
+        var numOfFreePlaces = new int[deviceIds.length];
+        var deviceIndexes = getDeviceIndexes(snapshot, deviceIds, numOfFreePlaces);
+        var numOfSlots = numOfFreePlaces.clone();
+        var components = getComponents(snapshot, deviceIds, numOfFreePlaces);
+        return new CP2023StorageSystem(deviceIds, deviceIndexes, numOfSlots, numOfFreePlaces, components,
+                                       new WaitForGraph(deviceIds.length), null, AdmissionControl.UNLIMITED);
+    }
+
+    private static AsyncStorageSystem newSystem(Map<DeviceId, Integer> deviceTotalSlots,
+                                                Map<ComponentId, DeviceId> componentPlacement,
+                                                int cycleSearchWorkBudget, PlacementJournal journal,
+                                                AdmissionControl admissionControl, int numOfShards) {
+        if (deviceTotalSlots == null) {
+            throw new IllegalArgumentException("deviceTotalsSlots is null");
+        }
+        if (componentPlacement == null) {
+            throw new IllegalArgumentException("componentPlacement is null");
+        }
+        if (deviceTotalSlots.isEmpty()) {
+            throw new IllegalArgumentException("deviceTotalSlots is empty");
+        }
+        // devices are remapped to dense indexes, so that their state can be kept in arrays
+        var deviceIds = new DeviceId[deviceTotalSlots.size()];
+        var numOfFreePlaces = new int[deviceIds.length];
+        var deviceIndexes = getDeviceIndexes(deviceTotalSlots, deviceIds, numOfFreePlaces);
+        var numOfSlots = numOfFreePlaces.clone();
+        var components = getComponents(componentPlacement, deviceIndexes, numOfFreePlaces);
+        if (journal != null) {
+            var replay = new JournalReplay(deviceIds, deviceIndexes, numOfSlots, numOfFreePlaces, components);
+            journal.replay(replay);
+            replay.finish();
+            deviceIds = replay.deviceIds;
+            numOfSlots = replay.numOfSlots;
+            numOfFreePlaces = replay.numOfFreePlaces;
+        }
+        if (numOfShards == NOT_SHARDED) {
+            return new CP2023StorageSystem(deviceIds, deviceIndexes, numOfSlots, numOfFreePlaces, components,
+                                           new WaitForGraph(deviceIds.length, cycleSearchWorkBudget), journal,
+                                           admissionControl);
+        }
+        var shardOf = new int[deviceIds.length];
+        for (int device = 0; device < deviceIds.length; device++) {
+            shardOf[device] = ShardedStorageSystem.shardOf(deviceIds[device], numOfShards);
+        }
+        return new ShardedStorageSystem(deviceIds, deviceIndexes, numOfSlots, numOfFreePlaces, components, numOfShards,
+                                        new ShardedWaitForGraph(shardOf, numOfShards, cycleSearchWorkBudget),
+                                        journal, admissionControl);
+    }
+
+    // Replays a journal over the devices and components the system has been created with. Devices added
+    // on the way get the next indexes. Removed devices keep theirs, as components leaving them may be journaled
+    // after them, but not their ids, which may be taken by devices added later.
+    private static final class JournalReplay implements PlacementJournal.Visitor {
+        private DeviceId[] deviceIds;
+        private final IntIntHashMap deviceIndexes;
+        private int[] numOfSlots;
+        private int[] numOfFreePlaces;
+        private final ComponentTable components;
+        private int numOfDevices;
+
+        JournalReplay(DeviceId[] deviceIds, IntIntHashMap deviceIndexes, int[] numOfSlots, int[] numOfFreePlaces,
+                      ComponentTable components) {
+            this.deviceIds = deviceIds;
+            this.deviceIndexes = deviceIndexes;
+            this.numOfSlots = numOfSlots;
+            this.numOfFreePlaces = numOfFreePlaces;
+            this.components = components;
+            this.numOfDevices = deviceIds.length;
+        }
+
+        @Override
+        public void visitComponent(int componentId, int deviceId, boolean removed) {
+            int state = components.get(componentId);
+            if (state != ComponentTable.ABSENT) {
+                ++numOfFreePlaces[ComponentTable.deviceOf(state)];
+            } else if (removed) {
+                throw new IllegalArgumentException(
+                    "Journal removes component " + new ComponentId(componentId) + " which is not in the system"
+                );
+            }
+            if (removed) {
+                components.remove(componentId);
+                return;
+            }
+            int deviceIndex = deviceIndexes.get(deviceId, -1);
+            if (deviceIndex == -1) {
+                throw new IllegalArgumentException(
+                    "Journal places component " + new ComponentId(componentId) + " on device " +
+                    new DeviceId(deviceId) + " which is neither present in deviceTotalSlots map nor journaled"
+                );
+            }
+            --numOfFreePlaces[deviceIndex];
+            components.put(componentId, ComponentTable.state(deviceIndex, false));
+        }
+
+        @Override
+        public void visitDevice(int deviceId, int numOfSlotsOnDevice) {
+            int deviceIndex = deviceIndexes.get(deviceId, -1);
+            if (numOfSlotsOnDevice == 0) {
+                if (deviceIndex == -1) {
+                    throw new IllegalArgumentException(
+                        "Journal removes device " + new DeviceId(deviceId) + " which is not in the system"
+                    );
+                }
+                deviceIndexes.remove(deviceId, -1);
+            } else if (deviceIndex == -1) {
+                if (numOfDevices == deviceIds.length) {
+                    deviceIds = Arrays.copyOf(deviceIds, 2 * numOfDevices);
+                    numOfSlots = Arrays.copyOf(numOfSlots, 2 * numOfDevices);
+                    numOfFreePlaces = Arrays.copyOf(numOfFreePlaces, 2 * numOfDevices);
+                }
+                deviceIndexes.put(deviceId, numOfDevices, -1);
+                deviceIds[numOfDevices] = new DeviceId(deviceId);
+                numOfSlots[numOfDevices] = numOfSlotsOnDevice;
+                numOfFreePlaces[numOfDevices] = numOfSlotsOnDevice;
+                numOfDevices++;
+            } else {
+                numOfFreePlaces[deviceIndex] += numOfSlotsOnDevice - numOfSlots[deviceIndex];
+                numOfSlots[deviceIndex] = numOfSlotsOnDevice;
+            }
+        }
+
+        // A journal cut right after the removal of a device may still have components on it,
+        // as their transfers from the device had not been journaled. The device is then not removed.
+        void finish() {
+            deviceIds = Arrays.copyOf(deviceIds, numOfDevices);
+            numOfSlots = Arrays.copyOf(numOfSlots, numOfDevices);
+            numOfFreePlaces = Arrays.copyOf(numOfFreePlaces, numOfDevices);
+            for (int device = 0; device < numOfDevices; device++) {
+                int deviceId = Ids.idOf(deviceIds[device]);
+                if (deviceIndexes.get(deviceId, -1) == device) {
+                    continue;
+                }
+                if (numOfFreePlaces[device] == numOfSlots[device]) {
+                    // as drainAndRemoveDevice() leaves it
+                    numOfFreePlaces[device] = 0;
+                } else if (deviceIndexes.put(deviceId, device, -1) != -1) {
+                    throw new IllegalArgumentException(
+                        "Journal leaves components on device " + deviceIds[device] +
+                        " which has been removed and added again"
+                    );
+                }
+            }
+        }
     }
 
-    private static HashMap<DeviceId, Integer> getNumOfPlacesLeftOnDevice(Map<DeviceId, Integer> deviceTotalSlots) {
-        HashMap<DeviceId, Integer> numOfPlacesLeftOnDevice = new HashMap<>(deviceTotalSlots);
-        for (var deviceTotalSlotsEntry : numOfPlacesLeftOnDevice.entrySet()) {
+    private static IntIntHashMap getDeviceIndexes(Map<DeviceId, Integer> deviceTotalSlots,
+                                                  DeviceId[] deviceIds, int[] numOfFreePlaces) {
+        var deviceIndexes = new IntIntHashMap(deviceIds.length);
+        for (var deviceTotalSlotsEntry : deviceTotalSlots.entrySet()) {
             var deviceId = deviceTotalSlotsEntry.getKey();
             var numOfSlotsOnDevice = deviceTotalSlotsEntry.getValue();
+            if (deviceId == null) {
+                throw new IllegalArgumentException("deviceTotalSlots contains undefined device");
+            }
             if (numOfSlotsOnDevice == null) {
                 throw new IllegalArgumentException("Device " + deviceId + " has undefined number of slots");
             }
             if (numOfSlotsOnDevice <= 0) {
                 throw new IllegalArgumentException("Device " + deviceId + " has non-positive number of slots");
             }
+            int deviceIndex = deviceIndexes.size();
+            deviceIndexes.put(Ids.idOf(deviceId), deviceIndex, -1);
+            deviceIds[deviceIndex] = deviceId;
+            numOfFreePlaces[deviceIndex] = numOfSlotsOnDevice;
         }
-        return numOfPlacesLeftOnDevice;
+        return deviceIndexes;
     }
 
-    private static ConcurrentHashMap<ComponentId, Optional<DeviceId>> getComponentPlacementOptional(
-            Map<ComponentId, DeviceId> componentPlacement, Map<DeviceId, Integer> numOfPlacesLeftOnDevice
-    ) {
-        ConcurrentHashMap<ComponentId, Optional<DeviceId>> componentPlacementOptional = new ConcurrentHashMap<>();
+    private static ComponentTable getComponents(Map<ComponentId, DeviceId> componentPlacement,
+                                                IntIntHashMap deviceIndexes, int[] numOfFreePlaces) {
+        var components = new ComponentTable(componentPlacement.size());
         for (var componentPlacementEntry : componentPlacement.entrySet()) {
             var componentId = componentPlacementEntry.getKey();
-            var deviceId = getDeviceId(numOfPlacesLeftOnDevice, componentPlacementEntry, componentId);
-            componentPlacementOptional.put(componentId, Optional.of(deviceId));
-            var placesLeftAfterPlacement = numOfPlacesLeftOnDevice.compute(deviceId, (__, num) -> --num);
-            if (placesLeftAfterPlacement < 0) {
+            if (componentId == null) {
+                throw new IllegalArgumentException("componentPlacement contains undefined component");
+            }
+            var deviceId = componentPlacementEntry.getValue();
+            if (deviceId == null) {
+                throw new IllegalArgumentException("Component " + componentId + " placed on undefined device");
+            }
+            int deviceIndex = deviceIndexes.get(Ids.idOf(deviceId), -1);
+            if (deviceIndex == -1) {
+                throw new IllegalArgumentException(
+                    "Component " + componentId + " placed on device " + deviceId +
+                    " which is not present in deviceTotalSlots map"
+                );
+            }
+            if (--numOfFreePlaces[deviceIndex] < 0) {
                 throw new IllegalArgumentException(
                     "Device " + deviceId + " does not have enough capacity to place component " + componentId
                 );
             }
+            components.put(Ids.idOf(componentId), ComponentTable.state(deviceIndex, false));
         }
-        return componentPlacementOptional;
+        return components;
     }
 
-    private static DeviceId getDeviceId(Map<DeviceId, Integer> numOfPlacesLeftOnDevice,
-                                        Map.Entry<ComponentId, DeviceId> componentPlacementEntry,
-                                        ComponentId componentId) {
-        var deviceId = componentPlacementEntry.getValue();
-        if (deviceId == null) {
-            throw new IllegalArgumentException("Component " + componentId + " placed on undefined device");
+    // Devices keep their positions in the snapshot as indexes.
+    private static IntIntHashMap getDeviceIndexes(SystemSnapshot snapshot, DeviceId[] deviceIds,
+                                                  int[] numOfFreePlaces) {
+        var deviceIndexes = new IntIntHashMap(deviceIds.length);
+        for (int deviceIndex = 0; deviceIndex < deviceIds.length; deviceIndex++) {
+            var deviceId = new DeviceId(snapshot.deviceIds.get(deviceIndex));
+            int numOfSlotsOnDevice = snapshot.deviceSlots.get(deviceIndex);
+            if (numOfSlotsOnDevice <= 0) {
+                throw new IllegalArgumentException("Device " + deviceId + " has non-positive number of slots");
+            }
+            if (deviceIndexes.put(Ids.idOf(deviceId), deviceIndex, -1) != -1) {
+                throw new IllegalArgumentException("Device " + deviceId + " appears twice in the snapshot");
+            }
+            deviceIds[deviceIndex] = deviceId;
+            numOfFreePlaces[deviceIndex] = numOfSlotsOnDevice;
         }
-        if (!numOfPlacesLeftOnDevice.containsKey(deviceId)) {
+        return deviceIndexes;
+    }
+
+    // Components are put into the table in batches of a single segment, so that a lock of the table
+    // is taken once per batch.
+    private static ComponentTable getComponents(SystemSnapshot snapshot, DeviceId[] deviceIds,
+                                                int[] numOfFreePlaces) {
+        int numOfComponents = snapshot.numOfComponents;
+        var components = new ComponentTable(numOfComponents);
+        var batchIds = new int[components.numOfSegments()][SNAPSHOT_BATCH_SIZE];
+        var batchStates = new int[components.numOfSegments()][SNAPSHOT_BATCH_SIZE];
+        var batchSizes = new int[components.numOfSegments()];
+        for (int i = 0; i < numOfComponents; i++) {
+            int componentId = snapshot.componentIds.get(i);
+            int deviceIndex = snapshot.componentDevices.get(i);
+            if (deviceIndex < 0 || deviceIndex >= deviceIds.length) {
+                throw new IllegalArgumentException(
+                    "Component " + new ComponentId(componentId) + " placed on device number " + deviceIndex +
+                    " which is not present in the snapshot"
+                );
+            }
+            if (--numOfFreePlaces[deviceIndex] < 0) {
+                throw new IllegalArgumentException(
+                    "Device " + deviceIds[deviceIndex] + " does not have enough capacity to place its components"
+                );
+            }
+            int segment = components.segmentOf(componentId);
+            int batchSize = batchSizes[segment];
+            batchIds[segment][batchSize] = componentId;
+            batchStates[segment][batchSize] = ComponentTable.state(deviceIndex, false);
+            batchSizes[segment] = ++batchSize;
+            if (batchSize == SNAPSHOT_BATCH_SIZE) {
+                putBatch(components, segment, batchIds[segment], batchStates[segment], batchSize);
+                batchSizes[segment] = 0;
+            }
+        }
+        for (int segment = 0; segment < batchSizes.length; segment++) {
+            putBatch(components, segment, batchIds[segment], batchStates[segment], batchSizes[segment]);
+        }
+        return components;
+    }
+
+    private static void putBatch(ComponentTable components, int segment, int[] componentIds, int[] states,
+                                 int batchSize) {
+        int duplicate = components.putAll(segment, componentIds, states, batchSize);
+        if (duplicate != -1) {
             throw new IllegalArgumentException(
-                "Component " + componentId + " placed on device " + deviceId +
-                " which is not present in deviceTotalSlots map"
+                "Component " + new ComponentId(componentIds[duplicate]) + " appears twice in the snapshot"
             );
         }
-        return deviceId;
     }
 }
@@ -0,0 +1,169 @@
+package cp2023.solution;
+
+import cp2023.base.DeviceId;
+
+import java.util.concurrent.atomic.LongAdder;
+
+// Live view of a storage system. Device gauges are read on demand, the rest is recorded by transfers
+// into striped counters, and only while recording is enabled.
+public final class StorageSystemMetrics {
+    private final CP2023StorageSystem system;
+    private volatile boolean enabled;
+    private final LongAdder admittedDirectly; // into a free place or the place of a leaving component
+    private final LongAdder releasedByChain; // waited until a leaving component handed its place over
+    private final LongAdder releasedByCycle;
+    private final LongAdder timedOut; // withdrawn from the queue by a timed execute()
+    private final LongAdder turnedAway; // would have waited, left by tryExecute()
+    private final LongAdder overloaded; // failed by admission control
+    private final LongAdder deferred; // deferred by admission control
+    private final LatencyHistogram timeToPrepare; // from acceptance until prepare() starts
+    private final LatencyHistogram timeToPerform; // from the end of prepare() until perform() starts
+    private final LatencyHistogram[] queuedWait; // by priority, only of transfers which have been queued
+
+    StorageSystemMetrics(CP2023StorageSystem system) {
+        this.system = system;
+        this.admittedDirectly = new LongAdder();
+        this.releasedByChain = new LongAdder();
+        this.releasedByCycle = new LongAdder();
+        this.timedOut = new LongAdder();
+        this.turnedAway = new LongAdder();
+        this.overloaded = new LongAdder();
+        this.deferred = new LongAdder();
+        this.timeToPrepare = new LatencyHistogram();
+        this.timeToPerform = new LatencyHistogram();
+        this.queuedWait = new LatencyHistogram[TransferPriority.values().length];
+        for (int i = 0; i < queuedWait.length; i++) {
+            queuedWait[i] = new LatencyHistogram();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    // Places nobody is leaving or waiting for.
+    public int freePlaces(DeviceId deviceId) {
+        return system.freePlaces(deviceId);
+    }
+
+    public int waitingTransfers(DeviceId deviceId) {
+        return system.waitingTransfers(deviceId);
+    }
+
+    // Waiting behind the others, as too many wait already, see AdmissionControl.
+    public int deferredTransfers(DeviceId deviceId) {
+        return system.deferredTransfers(deviceId);
+    }
+
+    public long admittedDirectly() {
+        return admittedDirectly.sum();
+    }
+
+    public long releasedByChain() {
+        return releasedByChain.sum();
+    }
+
+    public long releasedByCycle() {
+        return releasedByCycle.sum();
+    }
+
+    public long timedOut() {
+        return timedOut.sum();
+    }
+
+    public long turnedAway() {
+        return turnedAway.sum();
+    }
+
+    public long overloaded() {
+        return overloaded.sum();
+    }
+
+    public long deferred() {
+        return deferred.sum();
+    }
+
+    public LatencyHistogram timeToPrepare() {
+        return timeToPrepare;
+    }
+
+    public LatencyHistogram timeToPerform() {
+        return timeToPerform;
+    }
+
+    // From queueing for a place until prepare() starts.
+    public LatencyHistogram queuedWait(TransferPriority priority) {
+        return queuedWait[priority.ordinal()];
+    }
+
+    void recordAdmittedDirectly() {
+        if (enabled) {
+            admittedDirectly.increment();
+        }
+    }
+
+    void recordReleasedByChain() {
+        if (enabled) {
+            releasedByChain.increment();
+        }
+    }
+
+    void recordReleasedByCycle(int numOfMembers) {
+        if (enabled) {
+            releasedByCycle.add(numOfMembers);
+        }
+    }
+
+    void recordTimedOut() {
+        if (enabled) {
+            timedOut.increment();
+        }
+    }
+
+    void recordTurnedAway() {
+        if (enabled) {
+            turnedAway.increment();
+        }
+    }
+
+    void recordOverloaded() {
+        if (enabled) {
+            overloaded.increment();
+        }
+    }
+
+    void recordDeferred() {
+        if (enabled) {
+            deferred.increment();
+        }
+    }
+
+    // Returns the start of a measured interval, 0 when not recording.
+    long startTiming() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    void recordTimeToPrepare(long acceptedAt) {
+        record(timeToPrepare, acceptedAt);
+    }
+
+    void recordTimeToPerform(long preparedAt) {
+        record(timeToPerform, preparedAt);
+    }
+
+    void recordQueuedWait(TransferPriority priority, long waitingSince) {
+        if (enabled && waitingSince != 0) {
+            queuedWait[priority.ordinal()].record(System.nanoTime() - waitingSince);
+        }
+    }
+
+    private static void record(LatencyHistogram histogram, long since) {
+        if (since != 0) {
+            histogram.record(System.nanoTime() - since);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+// Device capacities and component placement as dense little-endian int arrays:
+//   magic, version, number of devices D, number of components C,
+//   device ids[D], device slots[D], component ids[C], component devices[C]
+// where component devices are indexes into device ids. Read by StorageSystemFactory.newSystem(Path)
+// straight from the mapped file, without building maps of boxed ids.
+public final class SystemSnapshot {
+    private static final int MAGIC = 0x43505353;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 4 * Integer.BYTES;
+
+    final int numOfDevices;
+    final int numOfComponents;
+    final IntBuffer deviceIds;
+    final IntBuffer deviceSlots;
+    final IntBuffer componentIds;
+    final IntBuffer componentDevices;
+
+    private SystemSnapshot(int numOfDevices, int numOfComponents, IntBuffer deviceIds, IntBuffer deviceSlots,
+                           IntBuffer componentIds, IntBuffer componentDevices) {
+        this.numOfDevices = numOfDevices;
+        this.numOfComponents = numOfComponents;
+        this.deviceIds = deviceIds;
+        this.deviceSlots = deviceSlots;
+        this.componentIds = componentIds;
+        this.componentDevices = componentDevices;
+    }
+
+    public static void write(Path path, Map<DeviceId, Integer> deviceTotalSlots,
+                             Map<ComponentId, DeviceId> componentPlacement) throws IOException {
+        var deviceIds = new int[deviceTotalSlots.size()];
+        var deviceSlots = new int[deviceIds.length];
+        var deviceIndexes = new IntIntHashMap(deviceIds.length);
+        int deviceIndex = 0;
+        for (var entry : deviceTotalSlots.entrySet()) {
+            deviceIds[deviceIndex] = Ids.idOf(entry.getKey());
+            deviceSlots[deviceIndex] = entry.getValue();
+            deviceIndexes.put(deviceIds[deviceIndex], deviceIndex, -1);
+            deviceIndex++;
+        }
+        var componentIds = new int[componentPlacement.size()];
+        var componentDevices = new int[componentIds.length];
+        int componentIndex = 0;
+        for (var entry : componentPlacement.entrySet()) {
+            int device = deviceIndexes.get(Ids.idOf(entry.getValue()), -1);
+            if (device == -1) {
+                throw new IllegalArgumentException(
+                    "Component " + entry.getKey() + " placed on device " + entry.getValue() +
+                    " which is not present in deviceTotalSlots map"
+                );
+            }
+            componentIds[componentIndex] = Ids.idOf(entry.getKey());
+            componentDevices[componentIndex] = device;
+            componentIndex++;
+        }
+        write(path, deviceIds, deviceSlots, componentIds, componentDevices);
+    }
+
+    // componentDevices[i] is the index in deviceIds of the device holding componentIds[i].
+    public static void write(Path path, int[] deviceIds, int[] deviceSlots, int[] componentIds,
+                             int[] componentDevices) throws IOException {
+        if (deviceSlots.length != deviceIds.length || componentDevices.length != componentIds.length) {
+            throw new IllegalArgumentException("Arrays of devices or components differ in length");
+        }
+        try (var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var header = map(channel, FileChannel.MapMode.READ_WRITE, 0, 4);
+            header.put(0, MAGIC).put(1, VERSION).put(2, deviceIds.length).put(3, componentIds.length);
+            long position = HEADER_SIZE;
+            for (var array : new int[][] {deviceIds, deviceSlots, componentIds, componentDevices}) {
+                map(channel, FileChannel.MapMode.READ_WRITE, position, array.length).put(0, array);
+                position += (long) array.length * Integer.BYTES;
+            }
+        }
+    }
+
+    // The buffers stay valid after the file is closed.
+    static SystemSnapshot map(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(path + " is not a system snapshot");
+            }
+            var header = map(channel, FileChannel.MapMode.READ_ONLY, 0, 4);
+            int numOfDevices = header.get(2);
+            int numOfComponents = header.get(3);
+            if (header.get(0) != MAGIC || header.get(1) != VERSION || numOfDevices < 0 || numOfComponents < 0 ||
+                channel.size() != HEADER_SIZE + 2L * Integer.BYTES * ((long) numOfDevices + numOfComponents)) {
+                throw new IOException(path + " is not a system snapshot");
+            }
+            long componentsAt = HEADER_SIZE + 2L * Integer.BYTES * numOfDevices;
+            return new SystemSnapshot(
+                numOfDevices,
+                numOfComponents,
+                map(channel, FileChannel.MapMode.READ_ONLY, HEADER_SIZE, numOfDevices),
+                map(channel, FileChannel.MapMode.READ_ONLY, HEADER_SIZE + (long) Integer.BYTES * numOfDevices,
+                    numOfDevices),
+                map(channel, FileChannel.MapMode.READ_ONLY, componentsAt, numOfComponents),
+                map(channel, FileChannel.MapMode.READ_ONLY, componentsAt + (long) Integer.BYTES * numOfComponents,
+                    numOfComponents)
+            );
+        }
+    }
+
+    // A single mapping is limited to 2 GB, so every array is mapped on its own.
+    private static IntBuffer map(FileChannel channel, FileChannel.MapMode mode, long position, int numOfInts)
+        throws IOException {
+        return channel.map(mode, position, (long) numOfInts * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN)
+            .asIntBuffer();
+    }
+}
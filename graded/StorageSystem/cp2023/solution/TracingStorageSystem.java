@@ -0,0 +1,94 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Map;
+
+// Records every execute() of the wrapped system into a TransferTrace. The configuration passed here
+// must be the one the wrapped system was created with, so that the trace can be replayed from scratch.
+public final class TracingStorageSystem implements StorageSystem, Closeable {
+    private final StorageSystem system;
+    private final TransferTrace.Writer writer;
+
+    public TracingStorageSystem(StorageSystem system, Path tracePath, Map<DeviceId, Integer> deviceTotalSlots,
+                                Map<ComponentId, DeviceId> componentPlacement) throws IOException {
+        this.system = system;
+        this.writer = new TransferTrace.Writer(tracePath, deviceTotalSlots, componentPlacement);
+    }
+
+    @Override
+    public void execute(ComponentTransfer transfer) throws TransferException {
+        long arrival = writer.now();
+        var timedTransfer = new TimedTransfer(transfer);
+        try {
+            system.execute(timedTransfer);
+        } catch (TransferException | RuntimeException | Error e) {
+            // the exception of the transfer matters more than a trace which could not be written
+            try {
+                append(timedTransfer, arrival, true);
+            } catch (RuntimeException appendFailure) {
+                e.addSuppressed(appendFailure);
+            }
+            throw e;
+        }
+        append(timedTransfer, arrival, false);
+    }
+
+    private void append(TimedTransfer timedTransfer, long arrival, boolean failed) {
+        writer.append(timedTransfer.getComponentId(), timedTransfer.getSourceDeviceId(),
+            timedTransfer.getDestinationDeviceId(), arrival, timedTransfer.prepareTime, timedTransfer.performTime,
+            writer.now() - arrival, failed);
+    }
+
+    // Writes out the buffered records, transfers executed afterwards must not be traced.
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private static final class TimedTransfer implements ComponentTransfer {
+        private final ComponentTransfer transfer;
+        private long prepareTime;
+        private long performTime;
+
+        TimedTransfer(ComponentTransfer transfer) {
+            this.transfer = transfer;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return transfer.getComponentId();
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return transfer.getSourceDeviceId();
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return transfer.getDestinationDeviceId();
+        }
+
+        @Override
+        public void prepare() {
+            long start = System.nanoTime();
+            transfer.prepare();
+            prepareTime = System.nanoTime() - start;
+        }
+
+        @Override
+        public void perform() {
+            long start = System.nanoTime();
+            transfer.perform();
+            performTime = System.nanoTime() - start;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentTransfer;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+// Flight Recorder events of the transfer lifecycle. Loading the first event class initializes the recorder,
+// which takes hundreds of milliseconds, so no event is created until the recorder is initialized by a recording.
+// Then an event is created only when it is enabled, which is asked of an instance kept just for that,
+// so disabled events allocate nothing.
+// Waits which may end in another thread cannot use begin(), so their start is kept in the transfer handle,
+// and only when the event is enabled.
+final class TransferEvents {
+    private TransferEvents() {
+    }
+
+    @Category({"CP2023", "Storage System"})
+    abstract static class TransferEvent extends Event {
+        @Label("Component")
+        String component;
+
+        @Label("Source Device")
+        String sourceDevice;
+
+        @Label("Destination Device")
+        String destinationDevice;
+
+        final void commit(ComponentTransfer transfer) {
+            if (shouldCommit()) {
+                component = String.valueOf(transfer.getComponentId());
+                sourceDevice = String.valueOf(transfer.getSourceDeviceId());
+                destinationDevice = String.valueOf(transfer.getDestinationDeviceId());
+                commit();
+            }
+        }
+    }
+
+    @Name("cp2023.Validation")
+    @Label("Transfer Validation")
+    @Description("Checking the transfer and marking its component as transferred")
+    static final class Validation extends TransferEvent {
+        @Label("Rejection")
+        String rejection;
+    }
+
+    @Name("cp2023.Reservation")
+    @Label("Place Reservation")
+    @Description("Taking a place on the destination device, or queueing for one")
+    static final class Reservation extends TransferEvent {
+        @Label("Queued")
+        boolean queued;
+    }
+
+    @Name("cp2023.QueuedWait")
+    @Label("Queued Wait")
+    @Description("Waiting in the queue of the destination device until the transfer is admitted")
+    static final class QueuedWait extends TransferEvent {
+        @Label("Wait Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long waitTime;
+
+        @Label("Priority")
+        String priority;
+    }
+
+    @Name("cp2023.Release")
+    @Label("Transfer Release")
+    @Description("Admitting waiting transfers by handing a place over, releasing a cycle, planning a batch " +
+        "or growing a device, " +
+        "reported for the transfer which caused it")
+    static final class Release extends TransferEvent {
+        @Label("Kind")
+        String kind;
+
+        @Label("Released Transfers")
+        int numOfReleased;
+    }
+
+    @Name("cp2023.Prepare")
+    @Label("Transfer Prepare")
+    static final class Prepare extends TransferEvent {
+    }
+
+    @Name("cp2023.PreparedWait")
+    @Label("Prepared Wait")
+    @Description("Waiting for prepare() of the component whose place the transfer takes")
+    static final class PreparedWait extends TransferEvent {
+        @Label("Wait Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long waitTime;
+
+        @Label("Replaced Component")
+        String replacedComponent;
+    }
+
+    @Name("cp2023.Perform")
+    @Label("Transfer Perform")
+    static final class Perform extends TransferEvent {
+    }
+
+    // Loaded only once the recorder is initialized, see recording().
+    private static final class Enabled {
+        static final Validation VALIDATION = new Validation();
+        static final Reservation RESERVATION = new Reservation();
+        static final QueuedWait QUEUED_WAIT = new QueuedWait();
+        static final Release RELEASE = new Release();
+        static final Prepare PREPARE = new Prepare();
+        static final PreparedWait PREPARED_WAIT = new PreparedWait();
+        static final Perform PERFORM = new Perform();
+    }
+
+    private static boolean recording() {
+        return FlightRecorder.isInitialized();
+    }
+
+    private static <E extends TransferEvent> E begin(E event) {
+        event.begin();
+        return event;
+    }
+
+    // The begin methods return null when the event is not recorded, and the end methods accept it.
+    static Validation beginValidation() {
+        return recording() && Enabled.VALIDATION.isEnabled() ? begin(new Validation()) : null;
+    }
+
+    static void endValidation(Validation event, ComponentTransfer transfer, Exception rejection) {
+        if (event != null) {
+            event.rejection = rejection == null ? null : rejection.getClass().getSimpleName();
+            event.commit(transfer);
+        }
+    }
+
+    static Reservation beginReservation() {
+        return recording() && Enabled.RESERVATION.isEnabled() ? begin(new Reservation()) : null;
+    }
+
+    static void endReservation(Reservation event, ComponentTransfer transfer, boolean queued) {
+        if (event != null) {
+            event.queued = queued;
+            event.commit(transfer);
+        }
+    }
+
+    static TransferEvent beginPrepare() {
+        return recording() && Enabled.PREPARE.isEnabled() ? begin(new Prepare()) : null;
+    }
+
+    static TransferEvent beginPerform() {
+        return recording() && Enabled.PERFORM.isEnabled() ? begin(new Perform()) : null;
+    }
+
+    static void end(TransferEvent event, ComponentTransfer transfer) {
+        if (event != null) {
+            event.commit(transfer);
+        }
+    }
+
+    static long startQueuedWait() {
+        return recording() && Enabled.QUEUED_WAIT.isEnabled() ? System.nanoTime() : 0;
+    }
+
+    static long startPreparedWait() {
+        return recording() && Enabled.PREPARED_WAIT.isEnabled() ? System.nanoTime() : 0;
+    }
+
+    static void endQueuedWait(PendingTransfer pendingTransfer) {
+        if (pendingTransfer.queuedAt != 0) {
+            var event = new QueuedWait();
+            event.waitTime = System.nanoTime() - pendingTransfer.queuedAt;
+            event.priority = pendingTransfer.priority.name();
+            event.commit(pendingTransfer.transfer);
+        }
+    }
+
+    static void endPreparedWait(PendingTransfer pendingTransfer) {
+        if (pendingTransfer.preparedWaitAt != 0) {
+            var event = new PreparedWait();
+            event.waitTime = System.nanoTime() - pendingTransfer.preparedWaitAt;
+            event.replacedComponent = String.valueOf(pendingTransfer.whoFreedMe.transfer.getComponentId());
+            event.commit(pendingTransfer.transfer);
+        }
+    }
+
+    static void released(String kind, PendingTransfer pendingTransfer, int numOfReleased) {
+        if (recording() && Enabled.RELEASE.isEnabled()) {
+            var event = new Release();
+            event.kind = kind;
+            event.numOfReleased = numOfReleased;
+            event.commit(pendingTransfer.transfer);
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package cp2023.solution;
+
+// Result of AsyncStorageSystem.tryExecute().
+public enum TransferOutcome {
+    COMPLETED, // prepare() and perform() have been run
+    WOULD_WAIT, // the destination device has no place now, the transfer has left no trace
+    REJECTED // the transfer is invalid, execute() would throw a TransferException
+}
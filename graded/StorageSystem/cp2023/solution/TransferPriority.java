@@ -0,0 +1,18 @@
+package cp2023.solution;
+
+import java.util.concurrent.TimeUnit;
+
+// Classes of transfers waiting for a place on a device. A waiting transfer is served once it has waited
+// the lag of its class longer than the others, so a lower class overtakes a higher one which has waited
+// shorter by more than the difference of their lags, and is never starved.
+public enum TransferPriority {
+    HIGH(0),
+    NORMAL(TimeUnit.MILLISECONDS.toNanos(100)),
+    BULK(TimeUnit.SECONDS.toNanos(10));
+
+    final long lagNanos;
+
+    TransferPriority(long lagNanos) {
+        this.lagNanos = lagNanos;
+    }
+}
@@ -0,0 +1,205 @@
+package cp2023.solution;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Binary trace of execute() calls, written by TracingStorageSystem and read by replay drivers.
+// All numbers are varints, signed ones zigzag encoded. The header holds the initial state of the system:
+//   magic, version, number of devices, (device, slots)*, number of components, (component, device)*
+// and every record, appended when its execute() returns:
+//   flags, component, [source], [destination], arrival delta, prepare, perform, latency
+// Arrival is in nanoseconds since the trace started, stored as a delta from the previous record,
+// which may be negative since records are written in the order transfers finish.
+public final class TransferTrace {
+    private static final int MAGIC = 0x43505452;
+    private static final int VERSION = 1;
+    private static final int HAS_SOURCE = 1;
+    private static final int HAS_DESTINATION = 2;
+    private static final int FAILED = 4;
+    private static final int MAX_RECORD_SIZE = 1 + 3 * 5 + 4 * 10;
+
+    private final Map<DeviceId, Integer> deviceTotalSlots;
+    private final Map<ComponentId, DeviceId> componentPlacement;
+    private final List<Record> records;
+
+    private TransferTrace(Map<DeviceId, Integer> deviceTotalSlots, Map<ComponentId, DeviceId> componentPlacement,
+                          List<Record> records) {
+        this.deviceTotalSlots = deviceTotalSlots;
+        this.componentPlacement = componentPlacement;
+        this.records = records;
+    }
+
+    // Times are in nanoseconds, latency covers the whole execute() call.
+    public record Record(ComponentId componentId, DeviceId sourceDeviceId, DeviceId destinationDeviceId,
+                         long arrival, long prepareTime, long performTime, long latency, boolean failed) {
+    }
+
+    public Map<DeviceId, Integer> deviceTotalSlots() {
+        return deviceTotalSlots;
+    }
+
+    public Map<ComponentId, DeviceId> componentPlacement() {
+        return componentPlacement;
+    }
+
+    // Records sorted by arrival.
+    public List<Record> records() {
+        return records;
+    }
+
+    public static TransferTrace read(Path path) throws IOException {
+        try (var in = new BufferedInputStream(new FileInputStream(path.toFile()), 1 << 16)) {
+            if (readVarint(in) != MAGIC || readVarint(in) != VERSION) {
+                throw new IOException(path + " is not a transfer trace");
+            }
+            var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+            for (long i = readVarint(in); i > 0; i--) {
+                deviceTotalSlots.put(new DeviceId((int) readSigned(in)), (int) readVarint(in));
+            }
+            var componentPlacement = new HashMap<ComponentId, DeviceId>();
+            for (long i = readVarint(in); i > 0; i--) {
+                componentPlacement.put(new ComponentId((int) readSigned(in)), new DeviceId((int) readSigned(in)));
+            }
+            var records = new ArrayList<Record>();
+            long arrival = 0;
+            int flags;
+            while ((flags = in.read()) != -1) {
+                var componentId = new ComponentId((int) readSigned(in));
+                var sourceDeviceId = (flags & HAS_SOURCE) == 0 ? null : new DeviceId((int) readSigned(in));
+                var destinationDeviceId = (flags & HAS_DESTINATION) == 0 ? null : new DeviceId((int) readSigned(in));
+                arrival += readSigned(in);
+                records.add(new Record(componentId, sourceDeviceId, destinationDeviceId, arrival,
+                    readVarint(in), readVarint(in), readVarint(in), (flags & FAILED) != 0));
+            }
+            records.sort(Comparator.comparingLong(Record::arrival));
+            return new TransferTrace(deviceTotalSlots, componentPlacement, records);
+        }
+    }
+
+    // Appends records to a buffer and writes it out when full, in the thread which filled it.
+    static final class Writer implements Closeable {
+        private final FileChannel channel;
+        private final ReentrantLock lock;
+        private final ByteBuffer buffer;
+        private final long start;
+        private long lastArrival;
+
+        Writer(Path path, Map<DeviceId, Integer> deviceTotalSlots, Map<ComponentId, DeviceId> componentPlacement)
+            throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+            this.lock = new ReentrantLock();
+            this.buffer = ByteBuffer.allocateDirect(1 << 16);
+            writeVarint(MAGIC);
+            writeVarint(VERSION);
+            writeVarint(deviceTotalSlots.size());
+            for (var entry : deviceTotalSlots.entrySet()) {
+                ensureCapacity(15);
+                writeSigned(Ids.idOf(entry.getKey()));
+                writeVarint(entry.getValue());
+            }
+            writeVarint(componentPlacement.size());
+            for (var entry : componentPlacement.entrySet()) {
+                ensureCapacity(10);
+                writeSigned(Ids.idOf(entry.getKey()));
+                writeSigned(Ids.idOf(entry.getValue()));
+            }
+            this.start = System.nanoTime();
+        }
+
+        long now() {
+            return System.nanoTime() - start;
+        }
+
+        void append(ComponentId componentId, DeviceId sourceDeviceId, DeviceId destinationDeviceId,
+                    long arrival, long prepareTime, long performTime, long latency, boolean failed) {
+            lock.lock();
+            try {
+                ensureCapacity(MAX_RECORD_SIZE);
+                buffer.put((byte) ((sourceDeviceId == null ? 0 : HAS_SOURCE) |
+                    (destinationDeviceId == null ? 0 : HAS_DESTINATION) | (failed ? FAILED : 0)));
+                writeSigned(Ids.idOf(componentId));
+                if (sourceDeviceId != null) {
+                    writeSigned(Ids.idOf(sourceDeviceId));
+                }
+                if (destinationDeviceId != null) {
+                    writeSigned(Ids.idOf(destinationDeviceId));
+                }
+                writeSigned(arrival - lastArrival);
+                lastArrival = arrival;
+                writeVarint(prepareTime);
+                writeVarint(performTime);
+                writeVarint(latency);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            lock.lock();
+            try {
+                flush();
+                channel.close();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void ensureCapacity(int size) throws IOException {
+            if (buffer.remaining() < size) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void writeSigned(long value) {
+            writeVarint((value << 1) ^ (value >> 63));
+        }
+
+        private void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+    }
+
+    private static long readSigned(InputStream in) throws IOException {
+        long value = readVarint(in);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Truncated transfer trace");
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint in transfer trace");
+    }
+}
@@ -0,0 +1,17 @@
+package cp2023.solution;
+
+// Carries messages between nodes of a DistributedStorageSystem. A message is an array of longs,
+// answered synchronously by the handler of its node with another one.
+public interface Transport {
+
+    interface Handler {
+        long[] handle(long[] message);
+    }
+
+    // Messages sent to the node are passed to the handler from now on.
+    void bind(int node, Handler handler);
+
+    // Returns the reply of the node. Messages may be handled concurrently, and a handler may send messages
+    // while handling one, so the transport must not wait for one message to be handled before handling another.
+    long[] call(int node, long[] message);
+}
@@ -0,0 +1,315 @@
+package cp2023.solution;
+
+import cp2023.base.DeviceId;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Device-to-device wait-for graph: every queued transfer of an existing component adds an edge
+// from its source to its destination device. Devices are kept in topological order of the graph
+// (Pearce-Kelly), so an edge agreeing with the order cannot close a cycle, and otherwise only
+// the devices ordered between the ends of the edge are searched and reordered.
+// An edge whose insertion closed a cycle stays out of order until its transfer is released or
+// rechecks it; such edges are never followed, because the searches rely on the order.
+//
+// Searches are iterative and reuse preallocated buffers, so their depth is not limited by the stack.
+// A search holds the graph lock for at most workBudget visited edges while other threads wait for it;
+// then it lets them in and restarts with a doubled budget if they have changed the graph.
+// Public only to be benchmarked, the system uses it internally.
+public final class WaitForGraph implements CycleDetector {
+    public static final int DEFAULT_WORK_BUDGET = 1 << 12;
+    private static final int FINISHED = 0; // results of a search
+    private static final int FOUND = 1;
+    private static final int INTERRUPTED = 2;
+
+    private final ReentrantLock lock; // guards edges and order, fair so that a pausing search lets others in
+    private final ReentrantLock searchLock; // guards the buffers below, one search at a time
+    private int numOfDevices; // the arrays grow as devices are added
+    private IntIntHashMap[] successors; // number of queued transfers for every edge
+    private IntIntHashMap[] predecessors;
+    private int[] order; // topological position of every device
+    private final int workBudget;
+    private long modificationCount;
+    private int[] stack;
+    private int[] stackSlot; // position in the adjacency of the device on the stack
+    private int[] parent;
+    private int[] visitStamp;
+    private int currentVisitStamp;
+    private int[] visitedForward;
+    private int[] visitedBackward;
+    private int numOfVisitedForward;
+    private int numOfVisitedBackward;
+    private long[] sortBuffer;
+
+    public WaitForGraph(int numOfDevices) {
+        this(numOfDevices, DEFAULT_WORK_BUDGET);
+    }
+
+    public WaitForGraph(int numOfDevices, int workBudget) {
+        if (workBudget <= 0) {
+            throw new IllegalArgumentException("workBudget has to be positive");
+        }
+        this.lock = new ReentrantLock(true);
+        this.searchLock = new ReentrantLock();
+        this.numOfDevices = numOfDevices;
+        this.successors = new IntIntHashMap[numOfDevices];
+        this.predecessors = new IntIntHashMap[numOfDevices];
+        this.order = new int[numOfDevices];
+        this.workBudget = workBudget;
+        this.stack = new int[numOfDevices];
+        this.stackSlot = new int[numOfDevices];
+        this.parent = new int[numOfDevices];
+        this.visitStamp = new int[numOfDevices];
+        this.visitedForward = new int[numOfDevices];
+        this.visitedBackward = new int[numOfDevices];
+        this.sortBuffer = new long[numOfDevices];
+        for (int device = 0; device < numOfDevices; device++) {
+            successors[device] = new IntIntHashMap(1);
+            predecessors[device] = new IntIntHashMap(1);
+            order[device] = device;
+        }
+    }
+
+    // Devices are added with consecutive indexes, each one last in the order, as it has no edges yet.
+    @Override
+    public void addDevice(int device, DeviceId deviceId) {
+        searchLock.lock();
+        lock.lock();
+        try {
+            if (device == successors.length) {
+                int capacity = Math.max(1, successors.length * 2);
+                successors = Arrays.copyOf(successors, capacity);
+                predecessors = Arrays.copyOf(predecessors, capacity);
+                order = Arrays.copyOf(order, capacity);
+                stack = Arrays.copyOf(stack, capacity);
+                stackSlot = Arrays.copyOf(stackSlot, capacity);
+                parent = Arrays.copyOf(parent, capacity);
+                visitStamp = Arrays.copyOf(visitStamp, capacity);
+                visitedForward = Arrays.copyOf(visitedForward, capacity);
+                visitedBackward = Arrays.copyOf(visitedBackward, capacity);
+                sortBuffer = Arrays.copyOf(sortBuffer, capacity);
+            }
+            successors[device] = new IntIntHashMap(1);
+            predecessors[device] = new IntIntHashMap(1);
+            order[device] = numOfDevices++;
+        } finally {
+            lock.unlock();
+            searchLock.unlock();
+        }
+    }
+
+    // Returns true if the new edge disagrees with the order, so checkEdge has to be called.
+    @Override
+    public boolean addEdge(int source, int destination) {
+        lock.lock();
+        try {
+            modificationCount++;
+            successors[source].addTo(destination, 1);
+            predecessors[destination].addTo(source, 1);
+            return order[source] > order[destination];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void removeEdge(int source, int destination) {
+        lock.lock();
+        try {
+            // removing edges never breaks the topological order
+            modificationCount++;
+            successors[source].addTo(destination, -1);
+            predecessors[destination].addTo(source, -1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Returns devices on the path from destination back to source if the edge closes a cycle,
+    // otherwise puts the edge in order. Returns null also when the edge is gone.
+    @Override
+    public int[] checkEdge(int source, int destination) {
+        searchLock.lock();
+        lock.lock();
+        try {
+            int budget = workBudget;
+            while (true) {
+                if (!successors[source].containsKey(destination) || order[source] < order[destination]) {
+                    return null;
+                }
+                int result = searchForward(destination, source, order[source], budget);
+                if (result == FOUND) {
+                    return pathTo(destination, source);
+                }
+                if (result == FINISHED) {
+                    result = searchBackward(source, order[destination], budget);
+                    if (result == FINISHED) {
+                        reorder();
+                        return null;
+                    }
+                }
+                budget *= 2; // the graph has changed while the search was pausing
+            }
+        } finally {
+            lock.unlock();
+            searchLock.unlock();
+        }
+    }
+
+    // For searches spanning several graphs, which read successorsOf() with the edges locked.
+    void lockEdges() {
+        lock.lock();
+    }
+
+    void unlockEdges() {
+        lock.unlock();
+    }
+
+    IntIntHashMap successorsOf(int device) {
+        return successors[device];
+    }
+
+    private int searchForward(int start, int target, int upperBound, int budget) {
+        currentVisitStamp++;
+        numOfVisitedForward = 0;
+        numOfVisitedBackward = 0;
+        visit(start, visitedForward, numOfVisitedForward++);
+        if (start == target) {
+            return FOUND;
+        }
+        int stackSize = 0;
+        stack[stackSize] = start;
+        stackSlot[stackSize++] = 0;
+        int work = 0;
+        long expectedModificationCount = modificationCount;
+        while (stackSize > 0) {
+            int device = stack[stackSize - 1];
+            var edges = successors[device];
+            int slot = stackSlot[stackSize - 1];
+            int nextDevice = IntIntHashMap.NO_KEY;
+            for (; slot < edges.capacity() && nextDevice == IntIntHashMap.NO_KEY; slot++, work++) {
+                int candidate = edges.keyAt(slot);
+                if (candidate != IntIntHashMap.NO_KEY && visitStamp[candidate] != currentVisitStamp &&
+                    order[device] < order[candidate] && order[candidate] <= upperBound) {
+                    nextDevice = candidate;
+                }
+            }
+            stackSlot[stackSize - 1] = slot;
+            if (nextDevice == IntIntHashMap.NO_KEY) {
+                stackSize--;
+            } else {
+                parent[nextDevice] = device;
+                visit(nextDevice, visitedForward, numOfVisitedForward++);
+                if (nextDevice == target) {
+                    return FOUND;
+                }
+                stack[stackSize] = nextDevice;
+                stackSlot[stackSize++] = 0;
+            }
+            if (work >= budget) {
+                if (!pause(expectedModificationCount)) {
+                    return INTERRUPTED;
+                }
+                work = 0;
+            }
+        }
+        return FINISHED;
+    }
+
+    // Keeps the visit stamps of the forward search, both searches stay within different orders.
+    private int searchBackward(int start, int lowerBound, int budget) {
+        visit(start, visitedBackward, numOfVisitedBackward++);
+        int stackSize = 0;
+        stack[stackSize] = start;
+        stackSlot[stackSize++] = 0;
+        int work = 0;
+        long expectedModificationCount = modificationCount;
+        while (stackSize > 0) {
+            int device = stack[stackSize - 1];
+            var edges = predecessors[device];
+            int slot = stackSlot[stackSize - 1];
+            int previousDevice = IntIntHashMap.NO_KEY;
+            for (; slot < edges.capacity() && previousDevice == IntIntHashMap.NO_KEY; slot++, work++) {
+                int candidate = edges.keyAt(slot);
+                if (candidate != IntIntHashMap.NO_KEY && visitStamp[candidate] != currentVisitStamp &&
+                    order[candidate] < order[device] && order[candidate] >= lowerBound) {
+                    previousDevice = candidate;
+                }
+            }
+            stackSlot[stackSize - 1] = slot;
+            if (previousDevice == IntIntHashMap.NO_KEY) {
+                stackSize--;
+            } else {
+                visit(previousDevice, visitedBackward, numOfVisitedBackward++);
+                stack[stackSize] = previousDevice;
+                stackSlot[stackSize++] = 0;
+            }
+            if (work >= budget) {
+                if (!pause(expectedModificationCount)) {
+                    return INTERRUPTED;
+                }
+                work = 0;
+            }
+        }
+        return FINISHED;
+    }
+
+    private void visit(int device, int[] visited, int position) {
+        visitStamp[device] = currentVisitStamp;
+        visited[position] = device;
+    }
+
+    // Lets waiting threads modify the graph. Returns false if they did, so the search has to restart.
+    private boolean pause(long expectedModificationCount) {
+        if (!lock.hasQueuedThreads()) {
+            return true;
+        }
+        lock.unlock();
+        lock.lock();
+        return modificationCount == expectedModificationCount;
+    }
+
+    private int[] pathTo(int start, int target) {
+        int length = 1;
+        for (int device = target; device != start; device = parent[device]) {
+            length++;
+        }
+        var path = new int[length];
+        for (int device = target, i = length - 1; i >= 0; device = parent[device], i--) {
+            path[i] = device;
+        }
+        return path;
+    }
+
+    // Devices reaching the source go before devices reachable from the destination,
+    // keeping their relative order and reusing the positions they occupied.
+    private void reorder() {
+        sortByOrder(visitedBackward, numOfVisitedBackward);
+        sortByOrder(visitedForward, numOfVisitedForward);
+        int numOfPositions = 0;
+        for (int i = 0; i < numOfVisitedBackward; i++) {
+            sortBuffer[numOfPositions++] = order[visitedBackward[i]];
+        }
+        for (int i = 0; i < numOfVisitedForward; i++) {
+            sortBuffer[numOfPositions++] = order[visitedForward[i]];
+        }
+        Arrays.sort(sortBuffer, 0, numOfPositions);
+        numOfPositions = 0;
+        for (int i = 0; i < numOfVisitedBackward; i++) {
+            order[visitedBackward[i]] = (int) sortBuffer[numOfPositions++];
+        }
+        for (int i = 0; i < numOfVisitedForward; i++) {
+            order[visitedForward[i]] = (int) sortBuffer[numOfPositions++];
+        }
+    }
+
+    private void sortByOrder(int[] devices, int numOfDevices) {
+        for (int i = 0; i < numOfDevices; i++) {
+            sortBuffer[i] = ((long) order[devices[i]] << 32) | devices[i];
+        }
+        Arrays.sort(sortBuffer, 0, numOfDevices);
+        for (int i = 0; i < numOfDevices; i++) {
+            devices[i] = (int) sortBuffer[i];
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package cp2023.solution;
+
+import java.util.HashMap;
+
+// Transfers waiting for a place on a device, in a FIFO list per priority class. The next one is
+// the head with the earliest waitingSince + lag of its class, so within a class the longest waiting goes first.
+// Lists are linked through the transfers themselves, which are also linked into lists of transfers
+// from the same source device, so removing a transfer and finding the first one from a source take
+// constant time, however many transfers wait. Guarded by the lock of the device, but its size is also read
+// without it, to let transfers leave the device without the lock while nobody waits.
+final class WaitingQueue {
+    private static final int NUM_OF_PRIORITIES = TransferPriority.values().length;
+
+    private final Lists all;
+    private final HashMap<DeviceState, Lists> bySource; // only sources with waiting transfers
+    private volatile int size; // changed under the lock
+
+    // Heads and tails of the lists of every priority class.
+    private static final class Lists {
+        final PendingTransfer[] heads = new PendingTransfer[NUM_OF_PRIORITIES];
+        final PendingTransfer[] tails = new PendingTransfer[NUM_OF_PRIORITIES];
+
+        boolean isEmpty() {
+            for (var head : heads) {
+                if (head != null) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Returns null if the lists are empty.
+        PendingTransfer first() {
+            PendingTransfer first = null;
+            for (var head : heads) {
+                if (head != null && (first == null || servedBefore(head, first))) {
+                    first = head;
+                }
+            }
+            return first;
+        }
+    }
+
+    WaitingQueue() {
+        this.all = new Lists();
+        this.bySource = new HashMap<>();
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void offer(PendingTransfer pendingTransfer) {
+        pendingTransfer.waitingSince = System.nanoTime();
+        requeue(pendingTransfer);
+    }
+
+    // Same as offer(), but the transfer keeps waiting since it was offered to another queue.
+    void requeue(PendingTransfer pendingTransfer) {
+        pendingTransfer.waitingIn = this;
+        int priority = pendingTransfer.priority.ordinal();
+        var tail = all.tails[priority];
+        pendingTransfer.previousWaiting = tail;
+        if (tail == null) {
+            all.heads[priority] = pendingTransfer;
+        } else {
+            tail.nextWaiting = pendingTransfer;
+        }
+        all.tails[priority] = pendingTransfer;
+        if (pendingTransfer.source != null) {
+            var fromSource = bySource.computeIfAbsent(pendingTransfer.source, source -> new Lists());
+            var sourceTail = fromSource.tails[priority];
+            pendingTransfer.previousFromSource = sourceTail;
+            if (sourceTail == null) {
+                fromSource.heads[priority] = pendingTransfer;
+            } else {
+                sourceTail.nextFromSource = pendingTransfer;
+            }
+            fromSource.tails[priority] = pendingTransfer;
+        }
+        size++;
+    }
+
+    // Returns null if nobody waits.
+    PendingTransfer poll() {
+        var first = all.first();
+        if (first != null) {
+            remove(first);
+        }
+        return first;
+    }
+
+    // Same order as poll(), but only among transfers from the source device, which are not removed.
+    PendingTransfer peekFrom(DeviceState source) {
+        var fromSource = bySource.get(source);
+        return fromSource == null ? null : fromSource.first();
+    }
+
+    boolean contains(PendingTransfer pendingTransfer) {
+        return pendingTransfer.waitingIn == this;
+    }
+
+    boolean remove(PendingTransfer pendingTransfer) {
+        if (pendingTransfer.waitingIn != this) {
+            return false;
+        }
+        int priority = pendingTransfer.priority.ordinal();
+        var previous = pendingTransfer.previousWaiting;
+        var next = pendingTransfer.nextWaiting;
+        if (previous == null) {
+            all.heads[priority] = next;
+        } else {
+            previous.nextWaiting = next;
+        }
+        if (next == null) {
+            all.tails[priority] = previous;
+        } else {
+            next.previousWaiting = previous;
+        }
+        if (pendingTransfer.source != null) {
+            var fromSource = bySource.get(pendingTransfer.source);
+            var previousFromSource = pendingTransfer.previousFromSource;
+            var nextFromSource = pendingTransfer.nextFromSource;
+            if (previousFromSource == null) {
+                fromSource.heads[priority] = nextFromSource;
+            } else {
+                previousFromSource.nextFromSource = nextFromSource;
+            }
+            if (nextFromSource == null) {
+                fromSource.tails[priority] = previousFromSource;
+            } else {
+                nextFromSource.previousFromSource = previousFromSource;
+            }
+            if (fromSource.isEmpty()) {
+                bySource.remove(pendingTransfer.source);
+            }
+        }
+        pendingTransfer.waitingIn = null;
+        pendingTransfer.previousWaiting = null;
+        pendingTransfer.nextWaiting = null;
+        pendingTransfer.previousFromSource = null;
+        pendingTransfer.nextFromSource = null;
+        size--;
+        return true;
+    }
+
+    // Compared as differences, as nanoTime() may overflow.
+    private static boolean servedBefore(PendingTransfer a, PendingTransfer b) {
+        return (a.waitingSince + a.priority.lagNanos) - (b.waitingSince + b.priority.lagNanos) < 0;
+    }
+}
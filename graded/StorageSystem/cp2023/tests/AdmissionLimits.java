@@ -0,0 +1,189 @@
+package cp2023.tests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.AdmissionControl;
+import cp2023.solution.AsyncStorageSystem;
+import cp2023.solution.DeviceOverloaded;
+import cp2023.solution.StorageSystemFactory;
+
+// Components are added to a full device of one slot under every policy of admission control: over the cap
+// they fail, or are deferred and admitted after those waiting already. Then a deferred transfer closes a cycle.
+public class AdmissionLimits {
+
+    public static void main(String[] args) throws Exception {
+        failing();
+        deferring();
+        withCallback();
+        deferredCycle();
+    }
+
+    private static void failing() throws Exception {
+        var system = newSystem(AdmissionControl.failing(2));
+        var threads = new ArrayList<Thread>();
+        threads.add(Scenarios.queue(system, new Move(1, 0, 1)));
+        threads.add(Scenarios.queue(system, new Move(2, 0, 1)));
+        try {
+            system.execute(new Move(3, 0, 1));
+            throw new RuntimeException("Third waiter admitted over the cap of two");
+        } catch (DeviceOverloaded e) {
+            System.out.println("Failed: " + e.getMessage());
+        }
+        try {
+            system.executeAsync(new Move(3, 0, 1), Runnable::run).join();
+            throw new RuntimeException("Third waiter admitted over the cap of two");
+        } catch (CompletionException e) {
+            if (!(e.getCause() instanceof DeviceOverloaded)) {
+                throw e;
+            }
+        }
+        if (system.metrics().overloaded() != 2 || system.metrics().waitingTransfers(new DeviceId(1)) != 2) {
+            throw new RuntimeException("Overloaded transfers are waiting");
+        }
+        system.execute(new Move(0, 1, 0));
+        threads.get(0).join();
+        system.execute(new Move(1, 1, 0));
+        for (var thread : threads) {
+            thread.join();
+        }
+        System.out.println("FAIL: " + system.metrics().overloaded() + " failed.");
+    }
+
+    private static void deferring() throws Exception {
+        var system = newSystem(AdmissionControl.deferring(1));
+        var admissionOrder = Collections.synchronizedList(new ArrayList<Integer>());
+        var threads = new ArrayList<Thread>();
+        for (int component = 1; component <= 3; component++) {
+            threads.add(Scenarios.queue(system, new RecordedMove(component, 0, 1, admissionOrder)));
+        }
+        if (system.metrics().waitingTransfers(new DeviceId(1)) != 1 ||
+            system.metrics().deferredTransfers(new DeviceId(1)) != 2) {
+            throw new RuntimeException("More than one transfer waits");
+        }
+        freeSlot(system, admissionOrder, 3);
+        for (var thread : threads) {
+            thread.join();
+        }
+        if (!admissionOrder.equals(List.of(1, 2, 3)) || system.metrics().deferred() != 2) {
+            throw new RuntimeException("Components admitted in order " + admissionOrder);
+        }
+        System.out.println("DEFER: admitted in order " + admissionOrder + ", " + system.metrics().deferred() +
+            " deferred.");
+    }
+
+    private static void withCallback() throws Exception {
+        var signals = Collections.synchronizedList(new ArrayList<String>());
+        var system = newSystem(AdmissionControl.withCallback(1, new AdmissionControl.Listener() {
+            @Override
+            public void onOverloaded(DeviceId deviceId) {
+                signals.add("overloaded " + deviceId);
+            }
+
+            @Override
+            public void onRelieved(DeviceId deviceId) {
+                signals.add("relieved " + deviceId);
+            }
+        }));
+        var admissionOrder = Collections.synchronizedList(new ArrayList<Integer>());
+        var threads = new ArrayList<Thread>();
+        for (int component = 1; component <= 3; component++) {
+            threads.add(Scenarios.queue(system, new RecordedMove(component, 0, 1, admissionOrder)));
+        }
+        freeSlot(system, admissionOrder, 3);
+        for (var thread : threads) {
+            thread.join();
+        }
+        if (!signals.equals(List.of("overloaded DEV-1", "relieved DEV-1"))) {
+            throw new RuntimeException("Listener told " + signals);
+        }
+        System.out.println("CALLBACK: listener told " + signals + ".");
+    }
+
+    // Component 10 waits for device 1 and fills its queue. Component 0 waits to go from device 1 to device 2,
+    // and component 20 is deferred going the other way, which still releases the two of them.
+    // Then component 20 goes on to device 3 in a cycle with component 10, which still waits.
+    private static void deferredCycle() throws Exception {
+        var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+        var componentPlacement = new HashMap<ComponentId, DeviceId>();
+        for (int device = 1; device <= 3; device++) {
+            deviceTotalSlots.put(new DeviceId(device), 1);
+        }
+        componentPlacement.put(new ComponentId(0), new DeviceId(1));
+        componentPlacement.put(new ComponentId(20), new DeviceId(2));
+        componentPlacement.put(new ComponentId(10), new DeviceId(3));
+        var system = StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement,
+            AdmissionControl.deferring(1));
+        system.metrics().setEnabled(true);
+        var threads = new ArrayList<Thread>();
+        threads.add(Scenarios.queue(system, new Move(10, 3, 1)));
+        threads.add(Scenarios.queue(system, new Move(0, 1, 2)));
+        system.execute(new Move(20, 2, 1));
+        threads.get(1).join();
+        system.execute(new Move(20, 1, 3));
+        for (var thread : threads) {
+            thread.join();
+        }
+        System.out.println("Deferred cycle released, " + system.metrics().releasedByCycle() + " released by cycles.");
+    }
+
+    // Device 1 of one slot holds component 0, device 0 has room for everyone.
+    private static AsyncStorageSystem newSystem(AdmissionControl admissionControl) {
+        var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+        deviceTotalSlots.put(new DeviceId(0), 100);
+        deviceTotalSlots.put(new DeviceId(1), 1);
+        var componentPlacement = new HashMap<ComponentId, DeviceId>();
+        componentPlacement.put(new ComponentId(0), new DeviceId(1));
+        for (int component = 1; component <= 3; component++) {
+            componentPlacement.put(new ComponentId(component), new DeviceId(0));
+        }
+        var system = StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement, admissionControl);
+        system.metrics().setEnabled(true);
+        RecordedMove.performed.clear();
+        return system;
+    }
+
+    // Moves components from device 1 back to device 0, starting with component 0, each time the one admitted last.
+    private static void freeSlot(AsyncStorageSystem system, List<Integer> admissionOrder, int numOfAdmissions)
+        throws TransferException, InterruptedException {
+        int component = 0;
+        for (int i = 0; i < numOfAdmissions; i++) {
+            system.execute(new Move(component, 1, 0));
+            while (admissionOrder.size() <= i) {
+                Thread.sleep(1);
+            }
+            component = admissionOrder.get(i);
+            while (!RecordedMove.performed.contains(component)) {
+                Thread.sleep(1);
+            }
+            RecordedMove.performed.remove(Integer.valueOf(component));
+        }
+    }
+
+    // Records the order in which moves are admitted and which of them have been performed.
+    private static final class RecordedMove extends Move {
+        private static final List<Integer> performed = Collections.synchronizedList(new ArrayList<>());
+        private final List<Integer> admissionOrder;
+
+        RecordedMove(int component, int source, int destination, List<Integer> admissionOrder) {
+            super(component, source, destination);
+            this.admissionOrder = admissionOrder;
+        }
+
+        @Override
+        public void prepare() {
+            admissionOrder.add(component);
+        }
+
+        @Override
+        public void perform() {
+            performed.add(component);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package cp2023.tests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.solution.StorageSystemFactory;
+
+// Rotates components around a full ring of devices with a single executor thread,
+// which only finishes if no transfer blocks the thread while waiting for its place.
+public class AsyncCycle {
+
+    public static void main(String[] args) throws Exception {
+        int numOfDevices = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+        var componentPlacement = new HashMap<ComponentId, DeviceId>();
+        for (int i = 1; i <= numOfDevices; i++) {
+            deviceTotalSlots.put(new DeviceId(i), 1);
+            componentPlacement.put(new ComponentId(i), new DeviceId(i));
+        }
+        var system = StorageSystemFactory.newAsyncSystem(deviceTotalSlots, componentPlacement);
+        var executor = Executors.newSingleThreadExecutor();
+        var futures = new ArrayList<CompletableFuture<Void>>();
+        for (int i = 1; i <= numOfDevices; i++) {
+            futures.add(system.executeAsync(new Move(i, i, i % numOfDevices + 1), executor));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(60, TimeUnit.SECONDS);
+        executor.shutdown();
+        System.out.println("Rotated " + numOfDevices + " components.");
+    }
+
+    private record Move(int component, int source, int destination) implements ComponentTransfer {
+        @Override
+        public ComponentId getComponentId() {
+            return new ComponentId(component);
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return new DeviceId(source);
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return new DeviceId(destination);
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void perform() {
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package cp2023.tests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.ComponentIsBeingOperatedOn;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.AsyncStorageSystem;
+import cp2023.solution.StorageSystemFactory;
+
+// Rotates a ring of full devices and moves a chain of components in one batch, from a single thread.
+// Before that, a batch with the same component twice must be rejected without moving anything.
+// Then a ring rotated on an executor has to prepare all of its transfers at the same time, and a chain
+// whose first transfer fails in prepare() has to be executed to the end anyway.
+public class BatchTransfers {
+
+    public static void main(String[] args) throws Exception {
+        int numOfDevices = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+        var componentPlacement = new HashMap<ComponentId, DeviceId>();
+        for (int i = 1; i <= numOfDevices; i++) {
+            deviceTotalSlots.put(new DeviceId(i), 2);
+            componentPlacement.put(new ComponentId(i), new DeviceId(i));
+            if (i < numOfDevices) {
+                componentPlacement.put(new ComponentId(numOfDevices + i), new DeviceId(i));
+            }
+        }
+        var system = StorageSystemFactory.newAsyncSystem(deviceTotalSlots, componentPlacement);
+
+        try {
+            system.executeAll(List.of(new Move(1, 1, 2), new Move(1, 1, 3)));
+            throw new RuntimeException("Batch moving component 1 twice has been accepted");
+        } catch (ComponentIsBeingOperatedOn e) {
+            System.out.println("Rejected batch: " + e);
+        }
+
+        // only the last device has a free place: the first components rotate around the ring,
+        // the second ones form a chain starting with a new component
+        var batch = new ArrayList<Move>();
+        batch.add(new Move(2 * numOfDevices, 0, 1));
+        for (int i = 1; i <= numOfDevices; i++) {
+            batch.add(new Move(i, i, i % numOfDevices + 1));
+            if (i < numOfDevices) {
+                batch.add(new Move(numOfDevices + i, i, i + 1));
+            }
+        }
+        system.executeAll(batch);
+        for (var transfer : batch) {
+            if (!transfer.performed) {
+                throw new RuntimeException("Transfer of component " + transfer.component + " has not been performed");
+            }
+        }
+        System.out.println("Executed " + batch.size() + " transfers in one batch.");
+
+        rotateInParallel(4);
+        failInPrepare();
+    }
+
+    private static void rotateInParallel(int numOfDevices) throws Exception {
+        var system = newRing(numOfDevices);
+        var allPreparing = new CountDownLatch(numOfDevices);
+        var batch = new ArrayList<Move>();
+        for (int i = 1; i <= numOfDevices; i++) {
+            var move = new Move(i, i, i % numOfDevices + 1, null);
+            move.onPrepare = () -> {
+                allPreparing.countDown();
+                try {
+                    if (!allPreparing.await(10, TimeUnit.SECONDS)) {
+                        throw new RuntimeException("Transfers of a ring have not been prepared in parallel");
+                    }
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            };
+            batch.add(move);
+        }
+        var executor = Executors.newFixedThreadPool(numOfDevices);
+        try {
+            system.executeAll(batch, executor);
+        } finally {
+            executor.shutdown();
+        }
+        for (var transfer : batch) {
+            if (!transfer.performed) {
+                throw new RuntimeException("Transfer of component " + transfer.component + " has not been performed");
+            }
+        }
+        System.out.println("Rotated a ring of " + numOfDevices + " devices in parallel.");
+    }
+
+    // Component 2 fails to leave device 2 for the free device 3, component 1 takes its place anyway.
+    private static void failInPrepare() throws TransferException {
+        var system = newRing(3);
+        system.execute(new Move(3, 3, 0));
+        var failure = new RuntimeException("prepare() failed");
+        var failing = new Move(2, 2, 3);
+        failing.onPrepare = () -> {
+            throw failure;
+        };
+        var following = new Move(1, 1, 2);
+        try {
+            system.executeAll(List.of(failing, following));
+            throw new RuntimeException("Failure of prepare() in a batch has not been thrown");
+        } catch (RuntimeException e) {
+            if (e != failure) {
+                throw e;
+            }
+        }
+        if (failing.performed || !following.performed) {
+            throw new RuntimeException("Transfers have not been completed after a failed prepare()");
+        }
+        // neither component is being operated on anymore
+        system.execute(new Move(2, 3, 1));
+        system.execute(new Move(1, 2, 3));
+        System.out.println("Completed a batch after a failed prepare().");
+    }
+
+    // Devices of one slot, each holding the component with its number.
+    private static AsyncStorageSystem newRing(int numOfDevices) {
+        var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+        var componentPlacement = new HashMap<ComponentId, DeviceId>();
+        for (int i = 1; i <= numOfDevices; i++) {
+            deviceTotalSlots.put(new DeviceId(i), 1);
+            componentPlacement.put(new ComponentId(i), new DeviceId(i));
+        }
+        return StorageSystemFactory.newAsyncSystem(deviceTotalSlots, componentPlacement);
+    }
+
+    private static final class Move implements ComponentTransfer {
+        private final int component;
+        private final int source;
+        private final int destination;
+        private final Thread owner; // null if prepare() may run on any thread
+        private Runnable onPrepare;
+        private volatile boolean prepared;
+        private volatile boolean performed;
+
+        Move(int component, int source, int destination) {
+            this(component, source, destination, Thread.currentThread());
+        }
+
+        Move(int component, int source, int destination, Thread owner) {
+            this.component = component;
+            this.source = source;
+            this.destination = destination;
+            this.owner = owner;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return new ComponentId(component);
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return source > 0 ? new DeviceId(source) : null;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return destination > 0 ? new DeviceId(destination) : null;
+        }
+
+        @Override
+        public void prepare() {
+            if (owner != null && Thread.currentThread() != owner) {
+                throw new RuntimeException(
+                    "Transfer of component " + component + " is being prepared by another thread"
+                );
+            }
+            if (onPrepare != null) {
+                onPrepare.run();
+            }
+            prepared = true;
+        }
+
+        @Override
+        public void perform() {
+            if (!prepared) {
+                throw new RuntimeException("Transfer of component " + component + " has not been prepared");
+            }
+            performed = true;
+        }
+    }
+}
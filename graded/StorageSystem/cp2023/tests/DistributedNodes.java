@@ -0,0 +1,137 @@
+package cp2023.tests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.ComponentDoesNotExist;
+import cp2023.solution.DistributedStorageSystem;
+import cp2023.solution.LoopbackTransport;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.Transport;
+
+// Devices of one slot are spread over three nodes, device d on node d mod 3, and every transfer is executed
+// on a node other than the owners of its devices. Components go along a chain and around cycles through
+// all nodes, first over the loopback transport, then over sockets, or only over the one given as argument.
+public class DistributedNodes {
+    private static final int NUM_OF_NODES = 3;
+
+    public static void main(String[] args) throws Exception {
+        int numOfDevices = 7;
+        if (args.length == 0 || args[0].equals("loopback")) {
+            run(new LoopbackTransport(NUM_OF_NODES), numOfDevices);
+            System.out.println("Loopback transport OK.");
+        }
+        if (args.length == 0 || args[0].equals("socket")) {
+            try (var transport = new SocketTransport(NUM_OF_NODES)) {
+                run(transport, numOfDevices);
+            }
+            System.out.println("Socket transport OK.");
+        }
+    }
+
+    private static void run(Transport transport, int numOfDevices) throws Exception {
+        var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+        var deviceNodes = new HashMap<DeviceId, Integer>();
+        var componentPlacement = new HashMap<ComponentId, DeviceId>();
+        for (int device = 0; device < numOfDevices; device++) {
+            deviceTotalSlots.put(new DeviceId(device), 1);
+            deviceNodes.put(new DeviceId(device), device % NUM_OF_NODES);
+        }
+        // the last device is free
+        for (int component = 0; component < numOfDevices - 1; component++) {
+            componentPlacement.put(new ComponentId(component), new DeviceId(component));
+        }
+        var nodes = new DistributedStorageSystem[NUM_OF_NODES];
+        for (int node = 0; node < NUM_OF_NODES; node++) {
+            nodes[node] = StorageSystemFactory.newNode(node, deviceTotalSlots, deviceNodes, componentPlacement,
+                                                       transport);
+        }
+        var placement = new int[numOfDevices - 1]; // device of every component
+        for (int component = 0; component < placement.length; component++) {
+            placement[component] = component;
+        }
+        var occupied = new AtomicIntegerArray(numOfDevices);
+        for (int device = 0; device < numOfDevices - 1; device++) {
+            occupied.set(device, 1);
+        }
+
+        try {
+            nodes[0].execute(new Move(0, 1, 2));
+            throw new RuntimeException("Component on another device moved");
+        } catch (ComponentDoesNotExist e) {
+            // expected
+        }
+
+        // every component moves to the next device towards the free one, the last one first
+        var moves = new ArrayList<CheckedMove>();
+        for (int component = placement.length - 1; component >= 0; component--) {
+            moves.add(new CheckedMove(component, placement[component], placement[component] + 1, occupied));
+        }
+        executeAll(nodes, moves, placement);
+
+        // the components, now on devices 1 to 6, go around the cycle of these devices
+        for (int round = 0; round < 4; round++) {
+            moves.clear();
+            for (int component = 0; component < placement.length; component++) {
+                int destination = placement[component] % (numOfDevices - 1) + 1;
+                moves.add(new CheckedMove(component, placement[component], destination, occupied));
+            }
+            executeAll(nodes, moves, placement);
+        }
+    }
+
+    private static void executeAll(DistributedStorageSystem[] nodes, ArrayList<CheckedMove> moves, int[] placement)
+        throws InterruptedException {
+        var threads = new ArrayList<Thread>();
+        for (var move : moves) {
+            var node = nodes[otherNode(move.source, move.destination)];
+            threads.add(Scenarios.start(node, move));
+            Thread.sleep(5); // so that chains are built in order
+        }
+        Scenarios.joinAll(threads, "Transfers not finished");
+        for (var move : moves) {
+            if (!move.performed) {
+                throw new RuntimeException("Component " + move.component + " not transferred");
+            }
+            placement[move.component] = move.destination;
+        }
+    }
+
+    // some node which owns neither of the devices, if there is one
+    private static int otherNode(int source, int destination) {
+        for (int node = 0; node < NUM_OF_NODES; node++) {
+            if (node != source % NUM_OF_NODES && node != destination % NUM_OF_NODES) {
+                return node;
+            }
+        }
+        return 0;
+    }
+
+    // Fails if a component is performed onto a device before the one on it has been prepared.
+    private static final class CheckedMove extends Move {
+        private final AtomicIntegerArray occupied; // components on every device, counting those coming
+        private volatile boolean performed;
+
+        CheckedMove(int component, int source, int destination, AtomicIntegerArray occupied) {
+            super(component, source, destination);
+            this.occupied = occupied;
+        }
+
+        @Override
+        public void prepare() {
+            occupied.decrementAndGet(source);
+        }
+
+        @Override
+        public void perform() {
+            if (occupied.incrementAndGet(destination) > 1) {
+                throw new RuntimeException("Component " + component + " performed before device " + destination +
+                                           " has been freed");
+            }
+            performed = true;
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package cp2023.tests;
+
+import java.util.HashMap;
+import java.util.function.Supplier;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.DeviceDoesNotExist;
+import cp2023.solution.AsyncStorageSystem;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.TransferOutcome;
+
+// Devices change while transfers wait for them: device 1 grows and admits as many waiting transfers as it has
+// new places, shrinks and takes places back from leaving components, then is drained and removed.
+// Added devices exchange their components in a cycle. All of it also with the wait-for graph split by shards.
+public class ElasticDevices {
+
+    public static void main(String[] args) throws Exception {
+        run("Single graph", () -> StorageSystemFactory.newAsyncSystem(deviceTotalSlots(), componentPlacement()));
+        run("Sharded graph", () -> StorageSystemFactory.newShardedSystem(deviceTotalSlots(), componentPlacement(), 2));
+    }
+
+    private static void run(String name, Supplier<AsyncStorageSystem> newSystem) throws Exception {
+        var system = newSystem.get();
+        grow(system);
+        shrink(system);
+        add(system);
+        drain(system);
+        System.out.println(name + " OK.");
+    }
+
+    // Device 1 holds component 0, three more wait for it.
+    private static void grow(AsyncStorageSystem system) throws Exception {
+        var first = Scenarios.queue(system, new Move(1, 0, 1));
+        var second = Scenarios.queue(system, new Move(2, 0, 1));
+        var third = Scenarios.queue(system, new Move(3, 0, 1));
+        system.resizeDevice(new DeviceId(1), 3);
+        first.join();
+        second.join();
+        if (waiting(system, 1) != 1 || system.metrics().freePlaces(new DeviceId(1)) != 0) {
+            throw new RuntimeException("Growing by two admitted " + (3 - waiting(system, 1)) + " transfers");
+        }
+        system.resizeDevice(new DeviceId(1), 4);
+        third.join();
+    }
+
+    // Device 1 holds components 0 to 3 in four slots, which go down to two.
+    private static void shrink(AsyncStorageSystem system) throws Exception {
+        system.resizeDevice(new DeviceId(1), 2);
+        system.execute(new Move(0, 1, 0));
+        var waiter = Scenarios.queue(system, new Move(4, 0, 1));
+        system.execute(new Move(1, 1, 0));
+        if (waiting(system, 1) != 1) {
+            throw new RuntimeException("Place taken back from a shrunk device handed over");
+        }
+        system.execute(new Move(2, 1, 0));
+        waiter.join();
+    }
+
+    // Devices 7 and 8 of one slot are added and exchange their components.
+    private static void add(AsyncStorageSystem system) throws Exception {
+        system.addDevice(new DeviceId(7), 1);
+        system.addDevice(new DeviceId(8), 1);
+        try {
+            system.addDevice(new DeviceId(7), 1);
+            throw new RuntimeException("Device added twice");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        system.execute(new Move(5, 0, 7));
+        system.execute(new Move(6, 0, 8));
+        var exchange = Scenarios.queue(system, new Move(5, 7, 8));
+        system.execute(new Move(6, 8, 7));
+        exchange.join();
+    }
+
+    // Device 1 holds components 3 and 4 in two slots while it is drained.
+    private static void drain(AsyncStorageSystem system) throws Exception {
+        var drainer = new Thread(() -> system.drainAndRemoveDevice(new DeviceId(1)));
+        drainer.start();
+        while (system.tryExecute(new Move(0, 0, 1)) != TransferOutcome.REJECTED) {
+            Thread.sleep(1);
+        }
+        system.execute(new Move(3, 1, 0));
+        drainer.join(100);
+        if (!drainer.isAlive()) {
+            throw new RuntimeException("Device removed with a component on it");
+        }
+        system.execute(new Move(4, 1, 0));
+        drainer.join(10_000);
+        if (drainer.isAlive()) {
+            throw new RuntimeException("Drained device not removed");
+        }
+        try {
+            system.execute(new Move(0, 0, 1));
+            throw new RuntimeException("Component moved to a removed device");
+        } catch (DeviceDoesNotExist e) {
+            // expected
+        }
+        system.addDevice(new DeviceId(1), 1);
+        system.execute(new Move(0, 0, 1));
+    }
+
+    // Device 0 has room for everyone and holds components 1 to 6, device 1 of one slot holds component 0.
+    private static HashMap<DeviceId, Integer> deviceTotalSlots() {
+        var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+        deviceTotalSlots.put(new DeviceId(0), 100);
+        deviceTotalSlots.put(new DeviceId(1), 1);
+        return deviceTotalSlots;
+    }
+
+    private static HashMap<ComponentId, DeviceId> componentPlacement() {
+        var componentPlacement = new HashMap<ComponentId, DeviceId>();
+        componentPlacement.put(new ComponentId(0), new DeviceId(1));
+        for (int component = 1; component <= 6; component++) {
+            componentPlacement.put(new ComponentId(component), new DeviceId(0));
+        }
+        return componentPlacement;
+    }
+
+    private static int waiting(AsyncStorageSystem system, int device) {
+        return system.metrics().waitingTransfers(new DeviceId(device));
+    }
+}
@@ -0,0 +1,169 @@
+package cp2023.tests;
+
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.DeviceDoesNotExist;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemFactory;
+
+// Moves components around concurrently with a journal, then restarts the system from the journal twice:
+// components have to be where they were moved to, removed ones must be gone and the second restart must also
+// see the transfers made after the first one. Then devices added, resized and removed at runtime have to be
+// recovered as well, and transfers whose perform() has failed must not be.
+public class JournalRecovery {
+
+    public static void main(String[] args) throws Exception {
+        int numOfDevices = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int numOfMoves = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+        var componentPlacement = new HashMap<ComponentId, DeviceId>();
+        for (int i = 1; i <= numOfDevices; i++) {
+            deviceTotalSlots.put(new DeviceId(i), 2);
+            componentPlacement.put(new ComponentId(i), new DeviceId(i));
+        }
+        var journalPath = Files.createTempFile("cp2023-journal", ".bin");
+        try {
+            // every component goes around the devices, every other one is removed at the end
+            var system = StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement, journalPath);
+            var finalDevices = new int[numOfDevices + 1];
+            var threads = new ArrayList<Thread>();
+            for (int i = 1; i <= numOfDevices; i++) {
+                int component = i;
+                var thread = new Thread(() -> {
+                    try {
+                        int device = component;
+                        for (int move = 1; move <= numOfMoves; move++) {
+                            int destination = (component + move * (component % 3 + 1) - 1) % numOfDevices + 1;
+                            if (destination != device) {
+                                system.execute(new Move(component, device, destination));
+                                device = destination;
+                            }
+                        }
+                        if (component % 2 == 0) {
+                            system.execute(new Move(component, device, Move.NONE));
+                            device = Move.NONE;
+                        }
+                        finalDevices[component] = device;
+                    } catch (TransferException e) {
+                        throw new RuntimeException(e);
+                    }
+                });
+                thread.start();
+                threads.add(thread);
+            }
+            for (var thread : threads) {
+                thread.join();
+            }
+
+            // removed components are added back to their initial devices and the others are removed
+            checkPlacement(StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement, journalPath),
+                finalDevices);
+            var expectedDevices = new int[numOfDevices + 1];
+            for (int component = 1; component <= numOfDevices; component++) {
+                expectedDevices[component] = finalDevices[component] == Move.NONE ? component : Move.NONE;
+            }
+            checkPlacement(StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement, journalPath),
+                expectedDevices);
+            System.out.println("Recovered " + numOfDevices + " components after " + numOfMoves + " moves each.");
+        } finally {
+            Files.delete(journalPath);
+        }
+        restartAfterRemovingDevices();
+        restartAfterFailedPerform();
+    }
+
+    // Devices 1 and 2 of one slot, component 1 on device 1. Device 3 is added, resized, used, removed and added
+    // again, then device 1 is removed: after a restart component 1 is on device 2 and component 2 on device 3.
+    private static void restartAfterRemovingDevices() throws Exception {
+        var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+        deviceTotalSlots.put(new DeviceId(1), 1);
+        deviceTotalSlots.put(new DeviceId(2), 1);
+        var componentPlacement = new HashMap<ComponentId, DeviceId>();
+        componentPlacement.put(new ComponentId(1), new DeviceId(1));
+        var journalPath = Files.createTempFile("cp2023-journal", ".bin");
+        try {
+            var system = StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement, journalPath);
+            system.addDevice(new DeviceId(3), 1);
+            system.resizeDevice(new DeviceId(3), 2);
+            system.execute(new Move(1, 1, 3));
+            system.execute(new Move(2, Move.NONE, 3));
+            system.execute(new Move(1, 3, 1));
+            system.execute(new Move(2, 3, 2));
+            system.drainAndRemoveDevice(new DeviceId(3));
+            system.addDevice(new DeviceId(3), 1);
+            system.execute(new Move(2, 2, 3));
+            system.execute(new Move(1, 1, 2));
+            system.drainAndRemoveDevice(new DeviceId(1));
+
+            // components are removed from where they have to be, device 1 must not come back
+            system = StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement, journalPath);
+            system.execute(new Move(1, 2, Move.NONE));
+            system.execute(new Move(2, 3, Move.NONE));
+            try {
+                system.execute(new Move(3, Move.NONE, 1));
+                throw new RuntimeException("Removed device 1 has been recovered");
+            } catch (DeviceDoesNotExist e) {
+                // expected
+            }
+
+            // the second restart replays the removals made after the first one
+            system = StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement, journalPath);
+            system.execute(new Move(1, Move.NONE, 2));
+            system.execute(new Move(2, Move.NONE, 3));
+            System.out.println("Recovered devices added and removed at runtime.");
+        } finally {
+            Files.delete(journalPath);
+        }
+    }
+
+    // Devices 1 and 2 of one slot, component 1 on device 1 fails to move to device 2: after a restart it is still
+    // on device 1.
+    private static void restartAfterFailedPerform() throws Exception {
+        var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+        deviceTotalSlots.put(new DeviceId(1), 1);
+        deviceTotalSlots.put(new DeviceId(2), 1);
+        var componentPlacement = new HashMap<ComponentId, DeviceId>();
+        componentPlacement.put(new ComponentId(1), new DeviceId(1));
+        var journalPath = Files.createTempFile("cp2023-journal", ".bin");
+        try {
+            var system = StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement, journalPath);
+            try {
+                system.execute(new Move(1, 1, 2) {
+                    @Override
+                    public void perform() {
+                        throw new IllegalStateException("perform() failed");
+                    }
+                });
+                throw new RuntimeException("Failed perform() not reported");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+
+            system = StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement, journalPath);
+            system.execute(new Move(1, 1, Move.NONE));
+            System.out.println("Failed transfer not recovered.");
+        } finally {
+            Files.delete(journalPath);
+        }
+    }
+
+    // Removing a component fails if it is somewhere else, adding it back fails if it is still in the system.
+    // Absent components are added to the device of the same number once all devices are empty.
+    private static void checkPlacement(StorageSystem system, int[] expectedDevices) throws TransferException {
+        for (int component = 1; component < expectedDevices.length; component++) {
+            if (expectedDevices[component] != Move.NONE) {
+                system.execute(new Move(component, expectedDevices[component], Move.NONE));
+            }
+        }
+        for (int component = 1; component < expectedDevices.length; component++) {
+            if (expectedDevices[component] == Move.NONE) {
+                system.execute(new Move(component, Move.NONE, component));
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package cp2023.tests;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.AsyncStorageSystem;
+import cp2023.solution.StorageSystemFactory;
+import jdk.jfr.consumer.RecordingStream;
+
+// Issues all transfers at once: every device is full and the destinations are a random permutation
+// of the places, so almost every transfer waits and only cycles can release them.
+// Reports throughput, peak heap, the system metrics and, on virtual threads, how often one pinned its carrier.
+// Usage: MillionTransfers [virtual|async] [devices] [componentsPerDevice] [seed]
+// Virtual threads need Java 21, where they are the default.
+public class MillionTransfers {
+    // see cp2023.solution.TransferEvents
+    private static final List<String> SYSTEM_EVENTS = List.of("cp2023.Validation", "cp2023.Reservation",
+        "cp2023.QueuedWait", "cp2023.Release", "cp2023.Prepare", "cp2023.PreparedWait", "cp2023.Perform");
+
+    public static void main(String[] args) throws Exception {
+        String mode = args.length > 0 ? args[0] : (Runtime.version().feature() >= 21 ? "virtual" : "async");
+        int numOfDevices = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        int componentsPerDevice = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+        long seed = args.length > 3 ? Long.parseLong(args[3]) : 42;
+
+        var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+        var componentPlacement = new HashMap<ComponentId, DeviceId>();
+        int numOfComponents = numOfDevices * componentsPerDevice;
+        int[] sources = new int[numOfComponents];
+        for (int i = 0; i < numOfComponents; i++) {
+            sources[i] = i / componentsPerDevice + 1;
+            componentPlacement.put(new ComponentId(i + 1), new DeviceId(sources[i]));
+        }
+        for (int i = 1; i <= numOfDevices; i++) {
+            deviceTotalSlots.put(new DeviceId(i), componentsPerDevice);
+        }
+        int[] destinations = permutationWithoutFixedDevices(sources, new Random(seed));
+        var transfers = new ArrayList<Move>(numOfComponents);
+        for (int i = 0; i < numOfComponents; i++) {
+            transfers.add(new Move(i + 1, sources[i], destinations[i]));
+        }
+        var system = StorageSystemFactory.newAsyncSystem(deviceTotalSlots, componentPlacement);
+        componentPlacement = null; // only the system should count towards the peak heap
+        system.metrics().setEnabled(true);
+
+        var pinnedEvents = new AtomicLong();
+        var pinnedTime = new AtomicLong();
+        var recording = mode.equals("virtual") ? recordPinning(pinnedEvents, pinnedTime) : null;
+        try {
+            System.gc();
+            List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+            for (var pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    pool.resetPeakUsage();
+                    heapPools.add(pool);
+                }
+            }
+            long start = System.nanoTime();
+            switch (mode) {
+                case "virtual" -> runOnVirtualThreads(system, transfers);
+                case "async" -> runAsynchronously(system, transfers);
+                default -> throw new IllegalArgumentException("Unknown mode " + mode);
+            }
+            long elapsed = System.nanoTime() - start;
+            long peakHeap = 0;
+            for (var pool : heapPools) {
+                peakHeap += pool.getPeakUsage().getUsed();
+            }
+            System.out.printf("mode=%s transfers=%d devices=%d time=%.2fs throughput=%.0f/s peakHeap=%dMB%n",
+                mode, numOfComponents, numOfDevices, elapsed / 1e9, numOfComponents / (elapsed / 1e9),
+                peakHeap >> 20);
+            if (recording != null) {
+                Thread.sleep(1500); // let the recording stream flush
+                System.out.printf("pinnedEvents=%d pinnedTime=%.1fms%n", pinnedEvents.get(),
+                    pinnedTime.get() / 1e6);
+            }
+            var metrics = system.metrics();
+            System.out.printf("admittedDirectly=%d releasedByChain=%d releasedByCycle=%d " +
+                    "timeToPrepare[p50=%dus p99=%dus] timeToPerform[p50=%dus p99=%dus]%n",
+                metrics.admittedDirectly(), metrics.releasedByChain(), metrics.releasedByCycle(),
+                metrics.timeToPrepare().percentile(0.5) / 1000, metrics.timeToPrepare().percentile(0.99) / 1000,
+                metrics.timeToPerform().percentile(0.5) / 1000, metrics.timeToPerform().percentile(0.99) / 1000);
+        } finally {
+            if (recording != null) {
+                recording.close();
+            }
+        }
+        for (var transfer : transfers) {
+            if (!transfer.performed) {
+                throw new RuntimeException("Transfer of component " + transfer.component + " has not been performed");
+            }
+        }
+    }
+
+    // Starting a recording turns on every event enabled by default, so the events of the system are turned off,
+    // not to be measured along with the transfers.
+    private static RecordingStream recordPinning(AtomicLong pinnedEvents, AtomicLong pinnedTime) {
+        var recording = new RecordingStream();
+        for (var systemEvent : SYSTEM_EVENTS) {
+            recording.disable(systemEvent);
+        }
+        recording.enable("jdk.VirtualThreadPinned").withThreshold(Duration.ZERO);
+        recording.onEvent("jdk.VirtualThreadPinned", event -> {
+            pinnedEvents.incrementAndGet();
+            pinnedTime.addAndGet(event.getDuration().toNanos());
+        });
+        recording.startAsync();
+        return recording;
+    }
+
+    private static void runOnVirtualThreads(AsyncStorageSystem system, List<Move> transfers)
+        throws InterruptedException {
+        var threadFactory = TestRunner.virtualThreadFactory();
+        var finished = new CountDownLatch(transfers.size());
+        for (var transfer : transfers) {
+            threadFactory.newThread(() -> {
+                try {
+                    system.execute(transfer);
+                } catch (TransferException e) {
+                    throw new RuntimeException("Unexpected transfer exception: " + e, e);
+                }
+                finished.countDown();
+            }).start();
+        }
+        if (!finished.await(10, TimeUnit.MINUTES)) {
+            throw new RuntimeException("Transfers have not finished");
+        }
+    }
+
+    private static void runAsynchronously(AsyncStorageSystem system, List<Move> transfers) throws Exception {
+        var executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        var futures = new CompletableFuture<?>[transfers.size()];
+        for (int i = 0; i < futures.length; i++) {
+            futures[i] = system.executeAsync(transfers.get(i), executor);
+        }
+        CompletableFuture.allOf(futures).get(10, TimeUnit.MINUTES);
+        executor.shutdown();
+    }
+
+    // Shuffles the places, then swaps away every component which would stay on its device.
+    private static int[] permutationWithoutFixedDevices(int[] sources, Random random) {
+        int[] destinations = sources.clone();
+        for (int i = destinations.length - 1; i > 0; i--) {
+            swap(destinations, i, random.nextInt(i + 1));
+        }
+        boolean fixed = true;
+        while (fixed) {
+            fixed = false;
+            for (int i = 0; i < destinations.length; i++) {
+                if (destinations[i] == sources[i]) {
+                    swap(destinations, i, random.nextInt(destinations.length));
+                    fixed = true;
+                }
+            }
+        }
+        return destinations;
+    }
+
+    private static void swap(int[] array, int i, int j) {
+        int tmp = array[i];
+        array[i] = array[j];
+        array[j] = tmp;
+    }
+
+    private static final class Move implements ComponentTransfer {
+        private final int component;
+        private final int source;
+        private final int destination;
+        private volatile boolean performed;
+
+        Move(int component, int source, int destination) {
+            this.component = component;
+            this.source = source;
+            this.destination = destination;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return new ComponentId(component);
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return new DeviceId(source);
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return new DeviceId(destination);
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void perform() {
+            performed = true;
+        }
+    }
+}
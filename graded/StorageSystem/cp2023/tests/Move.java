@@ -0,0 +1,43 @@
+package cp2023.tests;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+
+// Transfer of a component between devices given by their numbers, NONE when adding or removing it.
+// prepare() and perform() do nothing, scenarios which check them override them.
+class Move implements ComponentTransfer {
+    static final int NONE = -1;
+    final int component;
+    final int source;
+    final int destination;
+
+    Move(int component, int source, int destination) {
+        this.component = component;
+        this.source = source;
+        this.destination = destination;
+    }
+
+    @Override
+    public ComponentId getComponentId() {
+        return new ComponentId(component);
+    }
+
+    @Override
+    public DeviceId getSourceDeviceId() {
+        return source == NONE ? null : new DeviceId(source);
+    }
+
+    @Override
+    public DeviceId getDestinationDeviceId() {
+        return destination == NONE ? null : new DeviceId(destination);
+    }
+
+    @Override
+    public void prepare() {
+    }
+
+    @Override
+    public void perform() {
+    }
+}
@@ -0,0 +1,127 @@
+package cp2023.tests;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.AsyncStorageSystem;
+import cp2023.solution.PlacementPolicy;
+import cp2023.solution.StorageSystemFactory;
+
+// Empty devices of 1, 3 and 2 slots are filled with components added where every policy chooses, none of
+// which may wait. Consistent hashing also has to put a component back where it was before.
+public class PlacedAdditions {
+    private static final int[] SLOTS = {1, 3, 2};
+
+    public static void main(String[] args) throws Exception {
+        fill("leastLoaded", PlacementPolicy.leastLoaded());
+        fill("powerOfTwoChoices", PlacementPolicy.powerOfTwoChoices());
+        fill("consistentHash", PlacementPolicy.consistentHash());
+        stickiness();
+    }
+
+    private static void fill(String name, PlacementPolicy policy) throws Exception {
+        var system = newSystem();
+        var numOfComponents = new int[SLOTS.length];
+        int component = 0;
+        for (int slots : SLOTS) {
+            for (int slot = 0; slot < slots; slot++) {
+                numOfComponents[deviceNumber(add(system, policy, component++))]++;
+            }
+        }
+        for (int device = 0; device < SLOTS.length; device++) {
+            if (numOfComponents[device] != SLOTS[device]) {
+                throw new RuntimeException(name + " put " + numOfComponents[device] + " components on device " +
+                                           device + " of " + SLOTS[device] + " slots");
+            }
+        }
+        if (system.metrics().admittedDirectly() != component) {
+            throw new RuntimeException(name + " let components wait");
+        }
+        System.out.println(name + " filled all devices.");
+    }
+
+    private static void stickiness() throws Exception {
+        var system = newSystem();
+        var policy = PlacementPolicy.consistentHash();
+        for (int component = 0; component < 20; component++) {
+            var device = add(system, policy, component);
+            system.execute(new Transfer(component, device, null));
+            if (!add(system, policy, component).equals(device)) {
+                throw new RuntimeException("Component " + component + " moved from device " + device);
+            }
+            system.execute(new Transfer(component, device, null));
+        }
+        System.out.println("consistentHash put components back.");
+    }
+
+    private static DeviceId add(AsyncStorageSystem system, PlacementPolicy policy, int component) throws Exception {
+        var result = new DeviceId[1];
+        var thread = new Thread(() -> {
+            try {
+                result[0] = system.executePlaced(new ComponentId(component), policy,
+                                                 device -> new Transfer(component, null, device));
+            } catch (TransferException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        thread.join(10_000);
+        if (thread.isAlive() || result[0] == null) {
+            throw new RuntimeException("Component " + component + " not added");
+        }
+        return result[0];
+    }
+
+    private static AsyncStorageSystem newSystem() {
+        var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+        for (int device = 0; device < SLOTS.length; device++) {
+            deviceTotalSlots.put(new DeviceId(device), SLOTS[device]);
+        }
+        var system = StorageSystemFactory.newAsyncSystem(deviceTotalSlots, Map.of());
+        system.metrics().setEnabled(true);
+        return system;
+    }
+
+    private static int deviceNumber(DeviceId deviceId) {
+        return Integer.parseInt(deviceId.toString().substring("DEV-".length()));
+    }
+
+    private static final class Transfer implements ComponentTransfer {
+        private final int component;
+        private final DeviceId source;
+        private final DeviceId destination;
+
+        Transfer(int component, DeviceId source, DeviceId destination) {
+            this.component = component;
+            this.source = source;
+            this.destination = destination;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return new ComponentId(component);
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return source;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return destination;
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void perform() {
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package cp2023.tests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.AsyncStorageSystem;
+import cp2023.solution.PrioritizedTransfer;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.TransferPriority;
+
+// Components of all priority classes wait for the only slot of a device, which is freed again and again.
+// They must get it in the order of their classes, except for a NORMAL one which has waited long enough
+// to overtake a HIGH one.
+public class PriorityClasses {
+
+    public static void main(String[] args) throws Exception {
+        var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+        deviceTotalSlots.put(new DeviceId(1), 1);
+        var componentPlacement = new HashMap<ComponentId, DeviceId>();
+        componentPlacement.put(new ComponentId(0), new DeviceId(1));
+        var system = StorageSystemFactory.newAsyncSystem(deviceTotalSlots, componentPlacement);
+        system.metrics().setEnabled(true);
+        var admissionOrder = Collections.synchronizedList(new ArrayList<Integer>());
+
+        var threads = new ArrayList<Thread>();
+        threads.add(queue(system, new Addition(1, admissionOrder), TransferPriority.BULK));
+        threads.add(queue(system, new Addition(2, admissionOrder), TransferPriority.NORMAL));
+        threads.add(queue(system, new Addition(3, admissionOrder), TransferPriority.HIGH));
+        threads.add(queue(system, new Addition(4, admissionOrder), TransferPriority.NORMAL));
+        int last = freeSlot(system, 0, admissionOrder, 4);
+        check(admissionOrder, List.of(3, 2, 4, 1));
+
+        // the NORMAL one waits longer than its lag of 100 ms before the HIGH one comes
+        admissionOrder.clear();
+        threads.add(queue(system, new Addition(5, admissionOrder), TransferPriority.NORMAL));
+        Thread.sleep(200);
+        threads.add(queue(system, new Addition(6, admissionOrder), TransferPriority.HIGH));
+        freeSlot(system, last, admissionOrder, 2);
+        check(admissionOrder, List.of(5, 6));
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        for (var priority : TransferPriority.values()) {
+            var queuedWait = system.metrics().queuedWait(priority);
+            System.out.printf("%-6s queued %d, wait p50 %.1f ms%n", priority, queuedWait.count(),
+                queuedWait.percentile(0.5) / 1e6);
+        }
+    }
+
+    // Starts a thread adding the component and returns once it waits.
+    private static Thread queue(AsyncStorageSystem system, Addition addition, TransferPriority priority)
+        throws InterruptedException {
+        int numOfWaiting = system.metrics().waitingTransfers(new DeviceId(1));
+        var thread = new Thread(() -> {
+            try {
+                system.execute(PrioritizedTransfer.withPriority(addition, priority));
+            } catch (TransferException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        while (system.metrics().waitingTransfers(new DeviceId(1)) == numOfWaiting) {
+            Thread.sleep(1);
+        }
+        return thread;
+    }
+
+    // Removes the component from the device numOfAdmissions times, each time the one added last.
+    private static int freeSlot(AsyncStorageSystem system, int component, List<Integer> admissionOrder,
+                                int numOfAdmissions) throws TransferException, InterruptedException {
+        for (int i = 0; i < numOfAdmissions; i++) {
+            system.execute(new Removal(component));
+            while (admissionOrder.size() <= i) {
+                Thread.sleep(1);
+            }
+            component = admissionOrder.get(i);
+            while (!Addition.performed.contains(component)) {
+                Thread.sleep(1);
+            }
+        }
+        return component;
+    }
+
+    private static void check(List<Integer> admissionOrder, List<Integer> expected) {
+        if (!admissionOrder.equals(expected)) {
+            throw new RuntimeException("Components admitted in order " + admissionOrder + " instead of " + expected);
+        }
+        System.out.println("Admitted in order " + admissionOrder + ".");
+    }
+
+    private static final class Addition implements ComponentTransfer {
+        private static final List<Integer> performed = Collections.synchronizedList(new ArrayList<>());
+        private final int component;
+        private final List<Integer> admissionOrder;
+
+        Addition(int component, List<Integer> admissionOrder) {
+            this.component = component;
+            this.admissionOrder = admissionOrder;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return new ComponentId(component);
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return null;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return new DeviceId(1);
+        }
+
+        @Override
+        public void prepare() {
+            admissionOrder.add(component);
+        }
+
+        @Override
+        public void perform() {
+            performed.add(component);
+        }
+    }
+
+    private static final class Removal implements ComponentTransfer {
+        private final int component;
+
+        Removal(int component) {
+            this.component = component;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return new ComponentId(component);
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return new DeviceId(1);
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return null;
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void perform() {
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package cp2023.tests;
+
+import java.util.Collection;
+
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.base.StorageSystem;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.AsyncStorageSystem;
+
+// Threads executing transfers of the scenarios, which fail them by throwing.
+final class Scenarios {
+    private static final long JOIN_TIMEOUT_MILLIS = 10_000;
+
+    private Scenarios() {
+    }
+
+    static Thread start(StorageSystem system, ComponentTransfer transfer) {
+        var thread = new Thread(() -> {
+            try {
+                system.execute(transfer);
+            } catch (TransferException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    // Starts a thread executing the move and returns once it waits or is deferred.
+    static Thread queue(AsyncStorageSystem system, Move move) throws InterruptedException {
+        var destination = new DeviceId(move.destination);
+        int numOfQueued = numOfQueued(system, destination);
+        var thread = start(system, move);
+        while (numOfQueued(system, destination) == numOfQueued) {
+            Thread.sleep(1);
+        }
+        return thread;
+    }
+
+    static int numOfQueued(AsyncStorageSystem system, DeviceId deviceId) {
+        return system.metrics().waitingTransfers(deviceId) + system.metrics().deferredTransfers(deviceId);
+    }
+
+    static void joinAll(Collection<Thread> threads, String failure) throws InterruptedException {
+        for (var thread : threads) {
+            thread.join(JOIN_TIMEOUT_MILLIS);
+            if (thread.isAlive()) {
+                throw new RuntimeException(failure);
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package cp2023.tests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import cp2023.base.ComponentId;
+import cp2023.base.DeviceId;
+import cp2023.solution.ShardedStorageSystem;
+import cp2023.solution.StorageSystemFactory;
+
+// Devices of one slot are split into two shards, of even and odd ids. A cycle within a shard is released
+// without searching across shards, then cycles through both shards are released as well.
+public class ShardedCycles {
+
+    public static void main(String[] args) throws Exception {
+        int numOfDevices = args.length > 0 ? Integer.parseInt(args[0]) : 6;
+        var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+        var componentPlacement = new HashMap<ComponentId, DeviceId>();
+        for (int device = 0; device < numOfDevices; device++) {
+            deviceTotalSlots.put(new DeviceId(device), 1);
+            componentPlacement.put(new ComponentId(device), new DeviceId(device));
+        }
+        var system = StorageSystemFactory.newShardedSystem(deviceTotalSlots, componentPlacement, 2);
+        var placement = new int[numOfDevices]; // device of every component
+        for (int component = 0; component < numOfDevices; component++) {
+            placement[component] = component;
+        }
+
+        // even devices pass their components on to the next even one
+        var moves = new ArrayList<Move>();
+        for (int component = 0; component < numOfDevices; component += 2) {
+            moves.add(new Move(component, placement[component], (placement[component] + 2) % numOfDevices));
+        }
+        executeAll(system, moves, placement);
+        if (system.crossShardSearches() != 0) {
+            throw new RuntimeException("Cycle within a shard searched across shards");
+        }
+        System.out.println("Cycle within shard " + system.shardOf(new DeviceId(0)) + " released.");
+
+        // every component goes to the next device, alternating between shards
+        for (int round = 0; round < 3; round++) {
+            moves.clear();
+            for (int component = 0; component < numOfDevices; component++) {
+                moves.add(new Move(component, placement[component], (placement[component] + 1) % numOfDevices));
+            }
+            executeAll(system, moves, placement);
+        }
+        if (system.crossShardSearches() == 0) {
+            throw new RuntimeException("Cycles across shards released without searching across shards");
+        }
+        System.out.println("Cycles across shards released, " + system.crossShardSearches() + " searches.");
+    }
+
+    private static void executeAll(ShardedStorageSystem system, ArrayList<Move> moves, int[] placement)
+        throws InterruptedException {
+        var threads = new ArrayList<Thread>();
+        for (var move : moves) {
+            threads.add(Scenarios.start(system, move));
+        }
+        Scenarios.joinAll(threads, "Cycle not released");
+        for (var move : moves) {
+            placement[move.component] = move.destination;
+        }
+    }
+}
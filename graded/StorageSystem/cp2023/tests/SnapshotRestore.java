@@ -0,0 +1,106 @@
+package cp2023.tests;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.SystemSnapshot;
+
+// Restores a system from a snapshot and checks that every component is where it was placed, by removing it
+// from that device. Snapshots which are inconsistent or not snapshots at all must be rejected.
+public class SnapshotRestore {
+
+    public static void main(String[] args) throws IOException, TransferException {
+        int numOfDevices = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        int numOfSlots = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+        var componentPlacement = new HashMap<ComponentId, DeviceId>();
+        for (int device = 1; device <= numOfDevices; device++) {
+            deviceTotalSlots.put(new DeviceId(device), numOfSlots);
+            for (int slot = 0; slot < numOfSlots - device % 2; slot++) {
+                componentPlacement.put(new ComponentId(device * numOfSlots + slot), new DeviceId(device));
+            }
+        }
+        var snapshotPath = Files.createTempFile("cp2023-snapshot", ".bin");
+        try {
+            SystemSnapshot.write(snapshotPath, deviceTotalSlots, componentPlacement);
+            var system = StorageSystemFactory.newSystem(snapshotPath);
+            for (var entry : componentPlacement.entrySet()) {
+                system.execute(new Removal(entry.getKey(), entry.getValue()));
+            }
+            System.out.println("Restored " + componentPlacement.size() + " components on " + numOfDevices +
+                " devices.");
+
+            // two devices of one slot, component 3 is on device 0 of the snapshot
+            expectRejection(snapshotPath, "over capacity", new int[] {1, 2}, new int[] {1, 1},
+                new int[] {1, 2, 3}, new int[] {0, 1, 0});
+            expectRejection(snapshotPath, "component twice", new int[] {1, 2}, new int[] {1, 1},
+                new int[] {1, 1}, new int[] {0, 1});
+            expectRejection(snapshotPath, "unknown device", new int[] {1, 2}, new int[] {1, 1},
+                new int[] {1, 2}, new int[] {0, 2});
+            expectRejection(snapshotPath, "device twice", new int[] {1, 1}, new int[] {1, 1},
+                new int[] {1}, new int[] {0});
+            expectRejection(snapshotPath, "no slots", new int[] {1, 2}, new int[] {1, 0},
+                new int[] {1}, new int[] {0});
+            Files.write(snapshotPath, new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16});
+            try {
+                StorageSystemFactory.newSystem(snapshotPath);
+                throw new RuntimeException("A file which is not a snapshot has been accepted");
+            } catch (IOException e) {
+                System.out.println("Rejected: " + e.getMessage());
+            }
+        } finally {
+            Files.delete(snapshotPath);
+        }
+    }
+
+    private static void expectRejection(Path snapshotPath, String problem, int[] deviceIds, int[] deviceSlots,
+                                        int[] componentIds, int[] componentDevices) throws IOException {
+        SystemSnapshot.write(snapshotPath, deviceIds, deviceSlots, componentIds, componentDevices);
+        try {
+            StorageSystemFactory.newSystem(snapshotPath);
+            throw new RuntimeException("Snapshot with " + problem + " has been accepted");
+        } catch (IllegalArgumentException e) {
+            System.out.println("Rejected: " + e.getMessage());
+        }
+    }
+
+    private static final class Removal implements ComponentTransfer {
+        private final ComponentId componentId;
+        private final DeviceId deviceId;
+
+        Removal(ComponentId componentId, DeviceId deviceId) {
+            this.componentId = componentId;
+            this.deviceId = deviceId;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return componentId;
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return deviceId;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return null;
+        }
+
+        @Override
+        public void prepare() {
+        }
+
+        @Override
+        public void perform() {
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package cp2023.tests;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import cp2023.solution.Transport;
+
+// Transport over TCP connections on localhost, for testing nodes which do not share memory.
+// Every node listens on a port of its own, and every thread sending messages has a connection of its own
+// to every node, handled by a thread of its own there, so that a message never waits for another one.
+// A message is framed as its length followed by its longs. A reply of length -1 means the handler failed,
+// it is followed by the exception the handler threw, which the caller throws on.
+public final class SocketTransport implements Transport, AutoCloseable {
+    private static final int FAILED = -1;
+
+    private final AtomicIntegerArray ports;
+    private final ThreadLocal<Connection[]> connections;
+    private final ArrayList<Closeable> sockets;
+
+    private static final class Connection {
+        final DataInputStream in;
+        final DataOutputStream out;
+
+        Connection(Socket socket) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+    }
+
+    public SocketTransport(int numOfNodes) {
+        this.ports = new AtomicIntegerArray(numOfNodes);
+        this.connections = ThreadLocal.withInitial(() -> new Connection[numOfNodes]);
+        this.sockets = new ArrayList<>();
+    }
+
+    @Override
+    public void bind(int node, Handler handler) {
+        ServerSocket serverSocket;
+        try {
+            serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!ports.compareAndSet(node, 0, serverSocket.getLocalPort())) {
+            close(serverSocket);
+            throw new IllegalStateException("Node " + node + " is already bound");
+        }
+        register(serverSocket);
+        startDaemon("node-" + node + "-acceptor", () -> {
+            while (!serverSocket.isClosed()) {
+                try {
+                    var socket = serverSocket.accept();
+                    socket.setTcpNoDelay(true);
+                    register(socket);
+                    startDaemon("node-" + node + "-handler", () -> serve(socket, handler));
+                } catch (IOException e) {
+                    return; // closed
+                }
+            }
+        });
+    }
+
+    @Override
+    public long[] call(int node, long[] message) {
+        try {
+            var connection = connectionTo(node);
+            connection.out.writeInt(message.length);
+            for (long value : message) {
+                connection.out.writeLong(value);
+            }
+            connection.out.flush();
+            int length = connection.in.readInt();
+            if (length == FAILED) {
+                throw new IllegalStateException(
+                    "Node " + node + " failed to handle message " + message[0] + ": " + connection.in.readUTF()
+                );
+            }
+            var reply = new long[length];
+            for (int i = 0; i < length; i++) {
+                reply[i] = connection.in.readLong();
+            }
+            return reply;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        synchronized (sockets) {
+            for (var socket : sockets) {
+                close(socket);
+            }
+            sockets.clear();
+        }
+    }
+
+    private Connection connectionTo(int node) throws IOException {
+        var threadConnections = connections.get();
+        if (threadConnections[node] == null) {
+            int port = ports.get(node);
+            if (port == 0) {
+                throw new IllegalStateException("Node " + node + " is not bound");
+            }
+            var socket = new Socket(InetAddress.getLoopbackAddress(), port);
+            socket.setTcpNoDelay(true);
+            register(socket);
+            threadConnections[node] = new Connection(socket);
+        }
+        return threadConnections[node];
+    }
+
+    private static void serve(Socket socket, Handler handler) {
+        try {
+            var connection = new Connection(socket);
+            while (true) {
+                var message = new long[connection.in.readInt()];
+                for (int i = 0; i < message.length; i++) {
+                    message[i] = connection.in.readLong();
+                }
+                long[] reply;
+                try {
+                    reply = handler.handle(message);
+                } catch (RuntimeException e) {
+                    connection.out.writeInt(FAILED);
+                    connection.out.writeUTF(String.valueOf(e));
+                    connection.out.flush();
+                    continue;
+                }
+                connection.out.writeInt(reply.length);
+                for (long value : reply) {
+                    connection.out.writeLong(value);
+                }
+                connection.out.flush();
+            }
+        } catch (IOException e) {
+            close(socket); // the other side is gone
+        }
+    }
+
+    private void register(Closeable socket) {
+        synchronized (sockets) {
+            sockets.add(socket);
+        }
+    }
+
+    private static void startDaemon(String name, Runnable task) {
+        var thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static void close(Closeable socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing more to do
+        }
+    }
+}
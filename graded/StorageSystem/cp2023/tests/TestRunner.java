@@ -1,6 +1,10 @@
 package cp2023.tests;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ThreadFactory;
 
 import cp2023.base.ComponentId;
 import cp2023.base.ComponentTransfer;
@@ -8,14 +12,30 @@ import cp2023.base.DeviceId;
 import cp2023.base.StorageSystem;
 import cp2023.exceptions.TransferException;
 import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.TracingStorageSystem;
 
 
 public final class TestRunner {
+    // Threads used for transferrers, chosen with -Dcp2023.tests.threads=platform|virtual.
+    public enum ThreadMode {
+        PLATFORM, VIRTUAL;
+
+        public static ThreadMode fromProperty() {
+            return valueOf(System.getProperty("cp2023.tests.threads", "platform").toUpperCase(Locale.ROOT));
+        }
+    }
+
     private final Map<DeviceId, Integer> deviceTotalSlots;
     private final Map<ComponentId, DeviceId> componentPlacement;
     private final List<TransferParams> paramsList;
+    private final ThreadMode threadMode;
 
     public TestRunner(Map<Integer, Integer> deviceTotalSlots, Map<Integer, Integer> componentPlacement, List<TransferParams> paramsList) {
+        this(deviceTotalSlots, componentPlacement, paramsList, ThreadMode.fromProperty());
+    }
+
+    public TestRunner(Map<Integer, Integer> deviceTotalSlots, Map<Integer, Integer> componentPlacement, List<TransferParams> paramsList,
+                      ThreadMode threadMode) {
         this.deviceTotalSlots = new HashMap<>();
         for (var entry : deviceTotalSlots.entrySet()) {
             this.deviceTotalSlots.put(new DeviceId(entry.getKey()), entry.getValue());
@@ -25,18 +45,58 @@ public final class TestRunner {
             this.componentPlacement.put(new ComponentId(entry.getKey()), new DeviceId(entry.getValue()));
         }
         this.paramsList = paramsList;
+        this.threadMode = threadMode;
     }
 
+    // Virtual threads are looked up reflectively, so that the tests still compile with Java 17,
+    // but running with them needs Java 21.
+    public static ThreadFactory virtualThreadFactory() {
+        if (Runtime.version().feature() < 21) {
+            throw new IllegalStateException("Virtual threads need Java 21 or later, this is Java " +
+                Runtime.version().feature());
+        }
+        try {
+            var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            return (ThreadFactory) builder.getClass().getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads are not available in Java " +
+                Runtime.version().feature() + ", they need Java 21 or later", e);
+        }
+    }
+
+    // With -Dcp2023.tests.trace=<file> the transfers are recorded, see cp2023.benchmarks.TraceReplay.
+    // With -Dcp2023.tests.shards=<n> devices are split into n shards, see ShardedStorageSystem.
     public void run() {
-        var system = StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement);
+        var numOfShards = Integer.getInteger("cp2023.tests.shards");
+        StorageSystem system = numOfShards == null ?
+            StorageSystemFactory.newSystem(deviceTotalSlots, componentPlacement) :
+            StorageSystemFactory.newShardedSystem(deviceTotalSlots, componentPlacement, numOfShards);
+        var tracePath = System.getProperty("cp2023.tests.trace");
+        TracingStorageSystem tracingSystem = null;
+        if (tracePath != null) {
+            try {
+                system = tracingSystem = new TracingStorageSystem(system, Path.of(tracePath), deviceTotalSlots,
+                    componentPlacement);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
         Collection<Thread> users = setupTransferrers(system, paramsList);
         runTransferrers(users);
+        if (tracingSystem != null) {
+            try {
+                tracingSystem.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
     }
 
     private Collection<Thread> setupTransferrers(StorageSystem system, List<TransferParams> paramsList) {
+        ThreadFactory threadFactory = threadMode == ThreadMode.VIRTUAL ? virtualThreadFactory() : Thread::new;
         ArrayList<Thread> transferrers = new ArrayList<>();
         for (var params : paramsList) {
-            transferrers.add(new Thread(() -> {
+            transferrers.add(threadFactory.newThread(() -> {
                 sleep(params.waitBeforeTransferStartDuration());
                 System.out.println("Transferrer " + Thread.currentThread().getId() + " has started.");
                 executeTransfer(system, params.componentId(), params.sourceDeviceId(), params.destinationDeviceId(), params.waitBeforePrepareDuration(), params.transferPerformDuration());
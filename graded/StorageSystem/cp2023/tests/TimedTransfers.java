@@ -0,0 +1,163 @@
+package cp2023.tests;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.AsyncStorageSystem;
+import cp2023.solution.StorageSystemFactory;
+
+// A transfer to a full device times out and leaves no trace: its component can be transferred again,
+// nobody is left waiting and it does not take part in a later cycle. Then components jump between devices
+// of one slot with timeouts short enough to race with their admission, checking that no device ever holds
+// more components than it has slots.
+public class TimedTransfers {
+
+    public static void main(String[] args) throws Exception {
+        var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+        var componentPlacement = new HashMap<ComponentId, DeviceId>();
+        deviceTotalSlots.put(new DeviceId(1), 1);
+        deviceTotalSlots.put(new DeviceId(2), 1);
+        componentPlacement.put(new ComponentId(1), new DeviceId(1));
+        componentPlacement.put(new ComponentId(2), new DeviceId(2));
+        var system = StorageSystemFactory.newAsyncSystem(deviceTotalSlots, componentPlacement);
+        system.metrics().setEnabled(true);
+
+        expectTimeout(system, new Jump(null, 3, 0, 1));
+        expectTimeout(system, new Jump(null, 1, 1, 2));
+        if (system.metrics().waitingTransfers(new DeviceId(1)) != 0 ||
+            system.metrics().waitingTransfers(new DeviceId(2)) != 0 || system.metrics().timedOut() != 2) {
+            throw new RuntimeException("Timed out transfers are still waiting");
+        }
+        // component 1 swaps places with component 2, which would not happen if it was still moving to device 2
+        var swap = new Thread(() -> execute(system, new Jump(null, 1, 1, 2)));
+        swap.start();
+        system.execute(new Jump(null, 2, 2, 1), Duration.ofSeconds(10));
+        swap.join();
+        System.out.println("Timed out transfers withdrawn.");
+
+        int numOfDevices = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int numOfJumps = args.length > 1 ? Integer.parseInt(args[1]) : 10_000;
+        deviceTotalSlots.clear();
+        componentPlacement.clear();
+        for (int device = 1; device <= numOfDevices; device++) {
+            deviceTotalSlots.put(new DeviceId(device), 1);
+            if (device < numOfDevices) {
+                componentPlacement.put(new ComponentId(device), new DeviceId(device));
+            }
+        }
+        var racingSystem = StorageSystemFactory.newAsyncSystem(deviceTotalSlots, componentPlacement);
+        racingSystem.metrics().setEnabled(true);
+        var occupancy = new AtomicIntegerArray(numOfDevices + 1);
+        for (int device = 1; device < numOfDevices; device++) {
+            occupancy.set(device, 1);
+        }
+        var failure = new AtomicReference<Throwable>();
+        var threads = new ArrayList<Thread>();
+        for (int component = 1; component < numOfDevices; component++) {
+            int initialDevice = component;
+            var thread = new Thread(() -> {
+                var random = ThreadLocalRandom.current();
+                int device = initialDevice;
+                for (int i = 0; i < numOfJumps; i++) {
+                    int destination = (device - 1 + random.nextInt(1, numOfDevices)) % numOfDevices + 1;
+                    try {
+                        racingSystem.execute(new Jump(occupancy, initialDevice, device, destination),
+                            Duration.ofNanos(random.nextInt(1_000, 100_000)));
+                        device = destination;
+                    } catch (TimeoutException e) {
+                        // stays where it was
+                    } catch (TransferException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            thread.setUncaughtExceptionHandler((t, e) -> failure.compareAndSet(null, e));
+            thread.start();
+            threads.add(thread);
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new RuntimeException("Racing jumps failed", failure.get());
+        }
+        System.out.println("Racing jumps: " + racingSystem.metrics().timedOut() + " timed out, " +
+            (racingSystem.metrics().admittedDirectly() + racingSystem.metrics().releasedByChain() +
+             racingSystem.metrics().releasedByCycle()) + " admitted.");
+    }
+
+    private static void expectTimeout(AsyncStorageSystem system, Jump jump) throws TransferException {
+        try {
+            system.execute(jump, Duration.ofMillis(50));
+            throw new RuntimeException("Transfer of component " + jump.component + " has not timed out");
+        } catch (TimeoutException e) {
+            System.out.println("Timed out: " + e.getMessage());
+        }
+        if (jump.prepared) {
+            throw new RuntimeException("Transfer of component " + jump.component + " prepared after timing out");
+        }
+    }
+
+    private static void execute(AsyncStorageSystem system, Jump jump) {
+        try {
+            system.execute(jump);
+        } catch (TransferException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    // Components leave their source device when prepared and arrive at the destination when performed.
+    private static final class Jump implements ComponentTransfer {
+        private final AtomicIntegerArray occupancy; // null when not checked
+        private final int component;
+        private final int source;
+        private final int destination;
+        private volatile boolean prepared;
+
+        Jump(AtomicIntegerArray occupancy, int component, int source, int destination) {
+            this.occupancy = occupancy;
+            this.component = component;
+            this.source = source;
+            this.destination = destination;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return new ComponentId(component);
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return source > 0 ? new DeviceId(source) : null;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return new DeviceId(destination);
+        }
+
+        @Override
+        public void prepare() {
+            prepared = true;
+            if (occupancy != null) {
+                occupancy.decrementAndGet(source);
+            }
+        }
+
+        @Override
+        public void perform() {
+            if (occupancy != null && occupancy.incrementAndGet(destination) > 1) {
+                throw new RuntimeException("Device " + destination + " holds more than one component");
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package cp2023.tests;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+import cp2023.base.ComponentId;
+import cp2023.base.ComponentTransfer;
+import cp2023.base.DeviceId;
+import cp2023.exceptions.TransferException;
+import cp2023.solution.AsyncStorageSystem;
+import cp2023.solution.StorageSystemFactory;
+import cp2023.solution.TransferOutcome;
+
+// A transfer to a full device is turned away without a trace, an invalid one is rejected, and one which
+// finds a free place or the place of a leaving component completes, the latter after the leaving one is prepared.
+public class TryExecuteOutcomes {
+
+    public static void main(String[] args) throws Exception {
+        var deviceTotalSlots = new HashMap<DeviceId, Integer>();
+        var componentPlacement = new HashMap<ComponentId, DeviceId>();
+        for (int device = 1; device <= 3; device++) {
+            deviceTotalSlots.put(new DeviceId(device), 1);
+        }
+        componentPlacement.put(new ComponentId(1), new DeviceId(1));
+        componentPlacement.put(new ComponentId(2), new DeviceId(2));
+        var system = StorageSystemFactory.newAsyncSystem(deviceTotalSlots, componentPlacement);
+        system.metrics().setEnabled(true);
+
+        expect(system, new Move(1, 1, 2), TransferOutcome.WOULD_WAIT);
+        if (system.metrics().waitingTransfers(new DeviceId(2)) != 0 || system.metrics().turnedAway() != 1) {
+            throw new RuntimeException("Transfer turned away is waiting");
+        }
+        expect(system, new Move(1, 0, 3), TransferOutcome.REJECTED);
+        expect(system, new Move(1, 1, 3), TransferOutcome.COMPLETED);
+
+        // component 2 leaves device 2 for device 1 and component 1 takes its place
+        var leaving = new Move(2, 2, 1);
+        var thread = new Thread(() -> {
+            try {
+                system.execute(leaving);
+            } catch (TransferException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        thread.start();
+        leaving.preparing.await();
+        var arriving = new Move(1, 3, 2);
+        expect(system, arriving, TransferOutcome.COMPLETED);
+        if (!arriving.performedAfterLeaving) {
+            throw new RuntimeException("Component 1 performed before component 2 was prepared");
+        }
+        thread.join();
+        expect(system, new Move(2, 1, 3), TransferOutcome.COMPLETED);
+    }
+
+    private static void expect(AsyncStorageSystem system, Move move, TransferOutcome expected) {
+        var outcome = system.tryExecute(move);
+        if (outcome != expected) {
+            throw new RuntimeException("Transfer of component " + move.component + " from device " + move.source +
+                " to device " + move.destination + " ended with " + outcome + " instead of " + expected);
+        }
+        System.out.println("Component " + move.component + " from device " + move.source + " to device " +
+            move.destination + ": " + outcome);
+    }
+
+    private static final class Move implements ComponentTransfer {
+        private static volatile boolean leavingPrepared;
+        private final int component;
+        private final int source;
+        private final int destination;
+        private final CountDownLatch preparing = new CountDownLatch(1);
+        private volatile boolean performedAfterLeaving;
+
+        Move(int component, int source, int destination) {
+            this.component = component;
+            this.source = source;
+            this.destination = destination;
+        }
+
+        @Override
+        public ComponentId getComponentId() {
+            return new ComponentId(component);
+        }
+
+        @Override
+        public DeviceId getSourceDeviceId() {
+            return source > 0 ? new DeviceId(source) : null;
+        }
+
+        @Override
+        public DeviceId getDestinationDeviceId() {
+            return new DeviceId(destination);
+        }
+
+        @Override
+        public void prepare() {
+            preparing.countDown();
+            if (component == 2 && source == 2) {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                leavingPrepared = true;
+            }
+        }
+
+        @Override
+        public void perform() {
+            performedAfterLeaving = leavingPrepared;
+        }
+    }
+}